@@ -0,0 +1,206 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+// Times each phase of the interpreter on one or more programs.
+// Usage: java Benchmark [--warmup=N] [--runs=N] [--phases=...] [--save=file] [--compare=file] [--tolerance=N]
+//            file.code file.data [file.code file.data ...]
+// Phases are scan (Scanner over the whole file), scan-mapped (MappedScanner), parse (scanning included),
+// check, resolve, fused (FusedParser, all three in one pass), lazy (LazyParser, function bodies skipped),
+// cache (reading the optimized tree back from its TreeFile bytes, what a --cache hit does instead), optimize
+// and the engines tree, stack, closure, vm and jvm. The default is every phase except jvm,
+// whose class generation takes about a second per program. check:N runs the checker with N threads,
+// for seeing how it scales on programs with many functions, e.g. --phases=check,check:2,check:4,check:8.
+// Each engine run gets a fresh runtime and program output only goes into a CRC32, which has to come
+// out the same on every run and is printed with the times. Every result, the checksum or the tree or
+// checker a phase built, is written to a volatile field so the JIT can't drop the work that made it.
+// The jvm engine's class is generated once, that time is reported separately. Phases run one after the
+// other in this JVM, so the JIT's profile of one engine can slow down the next: bench.sh runs each
+// phase in a fresh JVM.
+//
+// --save writes the best time of every program and phase to a file, --compare reads such a file back and
+// exits with status 1 if any best time is more than tolerance percent (default 25) slower.
+class Benchmark {
+	interface Task {
+		Object run() throws IOException;
+	}
+
+	static volatile Object blackhole;
+
+	static int warmup = 5;
+	static int runs = 10;
+	static HashMap<String, Double> baseline;
+	static double tolerance = 25;
+	static PrintStream save;
+	static boolean regressed;
+	static JvmCompiler jvmProgram;
+
+	public static void main(String[] args) throws IOException {
+		String[] phases = { "scan", "scan-mapped", "parse", "check", "resolve", "fused", "lazy", "cache", "optimize", "tree", "stack", "closure", "vm" };
+		int argIndex = 0;
+		while (argIndex < args.length && args[argIndex].startsWith("--")) {
+			String option = args[argIndex++];
+			if (option.startsWith("--warmup=")) {
+				warmup = Integer.parseInt(option.substring("--warmup=".length()));
+			} else if (option.startsWith("--runs=")) {
+				runs = Integer.parseInt(option.substring("--runs=".length()));
+			} else if (option.startsWith("--phases=")) {
+				phases = option.substring("--phases=".length()).split(",");
+			} else if (option.startsWith("--save=")) {
+				save = new PrintStream(option.substring("--save=".length()));
+			} else if (option.startsWith("--compare=")) {
+				baseline = new HashMap<>();
+				for (String line : Files.readAllLines(Path.of(option.substring("--compare=".length())))) {
+					String[] fields = line.split(" ");
+					baseline.put(fields[0] + " " + fields[1], Double.parseDouble(fields[2]));
+				}
+			} else if (option.startsWith("--tolerance=")) {
+				tolerance = Double.parseDouble(option.substring("--tolerance=".length()));
+			} else {
+				System.out.println("Unknown option '" + option + "'.");
+				System.exit(1);
+			}
+		}
+
+		System.out.println(warmup + " warmup runs, " + runs + " measured runs");
+		for (; argIndex + 1 < args.length; argIndex += 2) {
+			benchmark(args[argIndex], args[argIndex + 1], phases);
+		}
+		if (save != null) {
+			save.close();
+		}
+		if (regressed) {
+			System.exit(1);
+		}
+	}
+
+	static void benchmark(String codeFile, String dataFile, String[] phases) throws IOException {
+		System.out.println();
+		System.out.println(codeFile);
+
+		// The later phases run on a tree that went through the whole front end once
+		Parser parser = new Parser(new Scanner(codeFile));
+		new SemanticChecker(parser.root);
+		new Resolver(parser.root);
+		new Optimizer(parser.root);
+		ParseTreeNode.Program program = parser.root;
+
+		for (String phase : phases) {
+			if (phase.equals("scan")) {
+				time(codeFile, phase, () -> scan(new Scanner(codeFile)));
+			} else if (phase.equals("scan-mapped")) {
+				time(codeFile, phase, () -> scan(new MappedScanner(codeFile)));
+			} else if (phase.equals("parse")) {
+				time(codeFile, phase, () -> new Parser(new Scanner(codeFile)));
+			} else if (phase.equals("check")) {
+				time(codeFile, phase, () -> new SemanticChecker(program));
+			} else if (phase.startsWith("check:")) {
+				int threads = Integer.parseInt(phase.substring("check:".length()));
+				time(codeFile, phase, () -> new SemanticChecker(program, threads));
+			} else if (phase.equals("resolve")) {
+				time(codeFile, phase, () -> new Resolver(program));
+			} else if (phase.equals("fused")) {
+				time(codeFile, phase, () -> new FusedParser(new Scanner(codeFile)));
+			} else if (phase.equals("lazy")) {
+				time(codeFile, phase, () -> new LazyParser(new Scanner(codeFile)));
+			} else if (phase.equals("cache")) {
+				var bytes = new ByteArrayOutputStream();
+				TreeFile.write(program, bytes, ProgramCache.VERSION);
+				System.out.printf("%-12s %d bytes%n", phase, bytes.size());
+				time(codeFile, phase, () -> TreeFile.read(new ByteArrayInputStream(bytes.toByteArray()), ProgramCache.VERSION));
+			} else if (phase.equals("optimize")) {
+				// Later runs see an already optimized tree, which still has to be walked and rebuilt
+				time(codeFile, phase, () -> new Optimizer(program));
+			} else if (phase.equals("jvm")) {
+				long start = System.nanoTime();
+				jvmProgram = new JvmCompiler(program);
+				System.out.printf("%-12s class generated in %.3f ms%n", phase, (System.nanoTime() - start) / 1e6);
+				time(codeFile, phase, () -> run(phase, program, dataFile));
+			} else {
+				time(codeFile, phase, () -> run(phase, program, dataFile));
+			}
+		}
+	}
+
+	static void time(String codeFile, String phase, Task task) throws IOException {
+		Object first = task.run();
+		for (int i = 1; i < warmup; i++) {
+			blackhole = task.run();
+		}
+		long total = 0;
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < runs; i++) {
+			long start = System.nanoTime();
+			Object result = task.run();
+			long elapsed = System.nanoTime() - start;
+			blackhole = result;
+			// An engine that printed something else than on its first run is broken, not fast
+			if (result instanceof Long && !result.equals(first)) {
+				System.out.println(phase + " on " + codeFile + ": output differs between runs.");
+				System.exit(1);
+			}
+			total += elapsed;
+			best = Math.min(best, elapsed);
+		}
+
+		double bestMs = best / 1e6;
+		System.out.printf("%-12s mean %10.3f ms   best %10.3f ms", phase, total / 1e6 / runs, bestMs);
+		if (first instanceof Long) {
+			System.out.printf("   output %08x", first);
+		}
+		String key = codeFile + " " + phase;
+		Double previous = baseline == null ? null : baseline.get(key);
+		if (previous != null) {
+			double change = (bestMs - previous) / previous * 100;
+			System.out.printf("   %+7.1f%%", change);
+			if (change > tolerance) {
+				System.out.print("   REGRESSION");
+				regressed = true;
+			}
+		}
+		System.out.println();
+		if (save != null) {
+			save.println(key + " " + bestMs);
+		}
+	}
+
+	// The number of tokens
+	static Integer scan(TokenSource scanner) {
+		int tokens = 0;
+		while (scanner.currentToken() != Core.EOF && scanner.currentToken() != Core.ERROR) {
+			scanner.nextToken();
+			tokens++;
+		}
+		return tokens;
+	}
+
+	// The CRC32 of the program's output
+	static Long run(String engine, ParseTreeNode.Program program, String dataFile) throws IOException {
+		var checksum = new CRC32();
+		var out = new OutputSink(new CheckedOutputStream(OutputStream.nullOutputStream(), checksum));
+		CoreRuntime runtime = new CoreRuntime(program, new InputReader(dataFile), out);
+		if (engine.equals("tree")) {
+			new Executor(program, runtime).run();
+		} else if (engine.equals("stack")) {
+			new StackExecutor(program, runtime).run();
+		} else if (engine.equals("closure")) {
+			new ClosureEngine(program, runtime).run();
+		} else if (engine.equals("vm")) {
+			new VirtualMachine(new BytecodeCompiler(program).program, runtime).run();
+		} else if (engine.equals("jvm")) {
+			jvmProgram.run(runtime);
+		} else {
+			System.out.println("Unknown phase '" + engine + "'.");
+			System.exit(1);
+		}
+		out.flush();
+		return checksum.getValue();
+	}
+}
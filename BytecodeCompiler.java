@@ -0,0 +1,394 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+// Compiles a checked and resolved program into a BytecodeProgram for the VirtualMachine.
+// Locals live in the registers with their slot's index, expression results go into temporaries
+// allocated above them and released after each statement.
+public class BytecodeCompiler {
+    int[] code;
+    int length;
+    IdentityHashMap<ParseTreeNode.FuncDecl, Integer> functionIndices;
+    int nextTemp;
+    int maxRegisters;
+    long[] spans;
+    int numSpans;
+    public BytecodeProgram program;
+
+    BytecodeCompiler(ParseTreeNode.Program p)
+    {
+        code = new int[256];
+        spans = new long[16];
+        functionIndices = new IdentityHashMap<>();
+        program = new BytecodeProgram();
+        program(p);
+    }
+
+    private int emit(int word)
+    {
+        if (length == code.length)
+        {
+            code = Arrays.copyOf(code, length * 2);
+        }
+        code[length] = word;
+        return length++;
+    }
+
+    private void emit(int op, int a)
+    {
+        emit(op);
+        emit(a);
+    }
+
+    private void emit(int op, int a, int b)
+    {
+        emit(op);
+        emit(a);
+        emit(b);
+    }
+
+    private void emit(int op, int a, int b, int c)
+    {
+        emit(op);
+        emit(a);
+        emit(b);
+        emit(c);
+    }
+
+    // Index of a new entry in the span table, the site operand of an instruction that can fail
+    private int site(long span)
+    {
+        if (numSpans == spans.length)
+        {
+            spans = Arrays.copyOf(spans, numSpans * 2);
+        }
+        spans[numSpans] = span;
+        return numSpans++;
+    }
+
+    // Jump targets are emitted as placeholders and patched once the target is known
+    private void patch(int operand)
+    {
+        code[operand] = length;
+    }
+
+    private int temp()
+    {
+        int register = nextTemp++;
+        maxRegisters = Math.max(maxRegisters, nextTemp);
+        return register;
+    }
+
+    void program(ParseTreeNode.Program p)
+    {
+        var functions = p.declSeq.funcDeclSeq;
+        int numFunctions = functions.size() + 1;
+        program.numGlobals = p.numGlobals;
+        program.numRefGlobals = p.numRefGlobals;
+        program.functionStart = new int[numFunctions];
+        program.functionRegisters = new int[numFunctions];
+        program.functionNames = new String[numFunctions];
+        for (int i = 0; i < functions.size(); i++)
+        {
+            functionIndices.put(functions.get(i), i);
+        }
+
+        for (int i = 0; i < functions.size(); i++)
+        {
+            var decl = functions.get(i);
+            function(i, decl.id, decl.frameSize, decl.body);
+            emit(BytecodeProgram.RET);
+        }
+
+        // Main goes last and starts by setting up the globals, so a saved program runs on its own
+        int main = functions.size();
+        program.mainFunction = main;
+        function(main, "main", p.frameSize, null);
+        for (var decl : p.declSeq.declSeq)
+        {
+            for (var slot : decl.slots)
+            {
+                int temp = temp();
+                emit(BytecodeProgram.CONST, temp, decl.type == VarType.INT ? 0 : CoreRuntime.NULL_REF);
+                emit(BytecodeProgram.STORE_GLOBAL, slot.index, temp);
+                nextTemp = p.frameSize;
+            }
+        }
+        stmtSeq(p.stmtSeq);
+        emit(BytecodeProgram.HALT);
+        program.functionRegisters[main] = maxRegisters;
+
+        program.code = Arrays.copyOf(code, length);
+        program.spans = Arrays.copyOf(spans, numSpans);
+    }
+
+    private void function(int index, String name, int frameSize, List<ParseTreeNode.Stmt> body)
+    {
+        program.functionStart[index] = length;
+        program.functionNames[index] = name;
+        nextTemp = frameSize;
+        maxRegisters = frameSize;
+        if (body != null)
+        {
+            stmtSeq(body);
+            program.functionRegisters[index] = maxRegisters;
+        }
+    }
+
+    void stmtSeq(List<ParseTreeNode.Stmt> stmts)
+    {
+        for (var s : stmts)
+        {
+            int firstTemp = nextTemp;
+            stmt(s);
+            nextTemp = firstTemp;
+        }
+    }
+
+    void stmt(ParseTreeNode.Stmt stmt)
+    {
+        if (stmt instanceof ParseTreeNode.Assign)
+        {
+            assign((ParseTreeNode.Assign)stmt);
+        }
+        else if (stmt instanceof ParseTreeNode.If)
+        {
+            ifStmt((ParseTreeNode.If)stmt);
+        }
+        else if (stmt instanceof ParseTreeNode.Loop)
+        {
+            loop((ParseTreeNode.Loop)stmt);
+        }
+        else if (stmt instanceof ParseTreeNode.Input)
+        {
+            input((ParseTreeNode.Input)stmt);
+        }
+        else if (stmt instanceof ParseTreeNode.Output)
+        {
+            emit(BytecodeProgram.OUTPUT, expr(((ParseTreeNode.Output)stmt).expr));
+        }
+        else if (stmt instanceof ParseTreeNode.VarDecl)
+        {
+            decl((ParseTreeNode.VarDecl)stmt);
+        }
+        else if (stmt instanceof ParseTreeNode.FuncCall)
+        {
+            funcCall((ParseTreeNode.FuncCall)stmt);
+        }
+    }
+
+    private void decl(ParseTreeNode.VarDecl decl)
+    {
+        // Only locals are declared inside statement sequences
+        for (var slot : decl.slots)
+        {
+            emit(BytecodeProgram.CONST, slot.index, decl.type == VarType.INT ? 0 : CoreRuntime.NULL_REF);
+        }
+    }
+
+    private void funcCall(ParseTreeNode.FuncCall stmt)
+    {
+        int[] args = new int[stmt.args.length];
+        for (int i = 0; i < args.length; i++)
+        {
+            args[i] = load(stmt.args[i]);
+        }
+        emit(BytecodeProgram.CALL, functionIndices.get(stmt.func), args.length, stmt.liveRefs);
+        emit(site(stmt.span));
+        for (int arg : args)
+        {
+            emit(arg);
+        }
+    }
+
+    private void input(ParseTreeNode.Input stmt)
+    {
+        if (stmt.slot.type == VarType.INT)
+        {
+            int target = stmt.slot.global ? temp() : stmt.slot.index;
+            emit(BytecodeProgram.INPUT, target, site(stmt.span));
+            store(stmt.slot, target);
+        }
+        else
+        {
+            int value = temp();
+            int site = site(stmt.span);
+            emit(BytecodeProgram.INPUT, value, site);
+            emit(BytecodeProgram.HEAP_STORE, load(stmt.slot), value, site);
+        }
+    }
+
+    private void loop(ParseTreeNode.Loop stmt)
+    {
+        int top = length;
+        var exits = new ArrayList<Integer>();
+        branch(stmt.condition, false, exits);
+        stmtSeq(stmt.body);
+        emit(BytecodeProgram.JUMP, top);
+        for (int exit : exits) patch(exit);
+    }
+
+    private void ifStmt(ParseTreeNode.If stmt)
+    {
+        var elseJumps = new ArrayList<Integer>();
+        branch(stmt.condition, false, elseJumps);
+        stmtSeq(stmt.ifBody);
+        if (stmt.elseBody == null)
+        {
+            for (int jump : elseJumps) patch(jump);
+            return;
+        }
+        emit(BytecodeProgram.JUMP);
+        int endJump = emit(0);
+        for (int jump : elseJumps) patch(jump);
+        stmtSeq(stmt.elseBody);
+        patch(endJump);
+    }
+
+    private void assign(ParseTreeNode.Assign stmt)
+    {
+        if (stmt.slot.type == VarType.INT)
+        {
+            store(stmt.slot, expr(stmt.exprRHS));
+        }
+        // id = new
+        else if (stmt.exprRHS == null && stmt.idRHS == null)
+        {
+            int target = stmt.slot.global ? temp() : stmt.slot.index;
+            emit(BytecodeProgram.NEW, target, stmt.liveRefs, site(stmt.span));
+            store(stmt.slot, target);
+        }
+        // id = ref id
+        else if (stmt.exprRHS == null)
+        {
+            store(stmt.slot, load(stmt.slotRHS));
+        }
+        // id = expr, the null check comes before the right hand side is evaluated
+        else
+        {
+            int ref = load(stmt.slot);
+            int site = site(stmt.span);
+            emit(BytecodeProgram.NULL_CHECK, ref, site);
+            emit(BytecodeProgram.HEAP_STORE, ref, expr(stmt.exprRHS), site);
+        }
+    }
+
+    // Register holding the raw value of a slot, globals are copied into a temporary
+    private int load(ParseTreeNode.Slot slot)
+    {
+        if (!slot.global) return slot.index;
+        int temp = temp();
+        emit(BytecodeProgram.LOAD_GLOBAL, temp, slot.index);
+        return temp;
+    }
+
+    private void store(ParseTreeNode.Slot slot, int register)
+    {
+        if (slot.global)
+        {
+            emit(BytecodeProgram.STORE_GLOBAL, slot.index, register);
+        }
+        else if (register != slot.index)
+        {
+            emit(BytecodeProgram.MOVE, slot.index, register);
+        }
+    }
+
+    // Emits a jump that is taken when the condition evaluates to jumpWhen and falls through
+    // otherwise. The jump target operands are added to jumps for patching.
+    private void branch(ParseTreeNode.Cond condition, boolean jumpWhen, List<Integer> jumps)
+    {
+        if (condition.cond == null)
+        {
+            comparison(condition.cmpr, jumpWhen, jumps);
+        }
+        else if (condition.cmpr == null)
+        {
+            branch(condition.cond, !jumpWhen, jumps);
+        }
+        else if (jumpWhen)
+        {
+            comparison(condition.cmpr, true, jumps);
+            branch(condition.cond, true, jumps);
+        }
+        else
+        {
+            // cmpr or cond is false only if both are, skip the second test when the first is true
+            var skips = new ArrayList<Integer>();
+            comparison(condition.cmpr, true, skips);
+            branch(condition.cond, false, jumps);
+            for (int skip : skips) patch(skip);
+        }
+    }
+
+    private void comparison(ParseTreeNode.Cmpr cmpr, boolean jumpWhen, List<Integer> jumps)
+    {
+        int lhs = expr(cmpr.lhs);
+        int rhs = expr(cmpr.rhs);
+        int op;
+        if (cmpr.comparison == Core.EQUAL) op = jumpWhen ? BytecodeProgram.JEQ : BytecodeProgram.JNE;
+        else if (cmpr.comparison == Core.LESS) op = jumpWhen ? BytecodeProgram.JLT : BytecodeProgram.JGE;
+        else op = jumpWhen ? BytecodeProgram.JLE : BytecodeProgram.JGT;
+        emit(op, lhs, rhs);
+        jumps.add(emit(0));
+    }
+
+    // Returns the register holding the value. Expressions are right recursive, a - b - c is
+    // a - (b - c) = a - b + c, so the terms are added up left to right into one temporary with the
+    // sign every - before them gives them. Temporaries of a term are released once it is added in.
+    private int expr(ParseTreeNode.Expr expr)
+    {
+        int first = term(expr.terms[0]);
+        if (expr.terms.length == 1) return first;
+        int result = temp();
+        int lhs = first;
+        boolean negative = false;
+        for (int i = 1; i < expr.terms.length; i++)
+        {
+            negative ^= expr.operators[i - 1] == Core.SUB;
+            int mark = nextTemp;
+            int rhs = term(expr.terms[i]);
+            emit(negative ? BytecodeProgram.SUB : BytecodeProgram.ADD, result, lhs, rhs);
+            nextTemp = mark;
+            lhs = result;
+        }
+        return result;
+    }
+
+    private int term(ParseTreeNode.Term term)
+    {
+        int first = factor(term.factors[0]);
+        if (term.factors.length == 1) return first;
+        int result = temp();
+        int lhs = first;
+        for (int i = 1; i < term.factors.length; i++)
+        {
+            int mark = nextTemp;
+            int rhs = factor(term.factors[i]);
+            emit(BytecodeProgram.MUL, result, lhs, rhs);
+            nextTemp = mark;
+            lhs = result;
+        }
+        return result;
+    }
+
+    private int factor(ParseTreeNode.Factor factor)
+    {
+        if (factor.slot != null)
+        {
+            int value = load(factor.slot);
+            if (factor.slot.type == VarType.INT) return value;
+            int result = temp();
+            emit(BytecodeProgram.HEAP_LOAD, result, value, site(factor.span));
+            return result;
+        }
+        else if (factor.expr != null)
+        {
+            return expr(factor.expr);
+        }
+        int result = temp();
+        emit(BytecodeProgram.CONST, result, factor.CONST);
+        return result;
+    }
+}
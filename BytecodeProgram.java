@@ -0,0 +1,403 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+// A program compiled for the VirtualMachine: one flat int[] of instructions plus a table of
+// functions. Instructions are an opcode followed by its operands. Operands named r are registers of
+// the current frame (a function's slots come first, then temporaries), g are global indices, and
+// target is an absolute index into code. Live refs is the number of ref slots (the first registers
+// of the frame) in scope at an allocation or call, the garbage collector scans those as roots. Site
+// is an index into spans, the source position a runtime error in that instruction reports.
+public class BytecodeProgram {
+    static final int CONST = 0;          // r, value
+    static final int MOVE = 1;           // r, r
+    static final int LOAD_GLOBAL = 2;    // r, g
+    static final int STORE_GLOBAL = 3;   // g, r
+    static final int ADD = 4;            // r, r, r
+    static final int SUB = 5;            // r, r, r
+    static final int MUL = 6;            // r, r, r
+    static final int JUMP = 7;           // target
+    static final int JLT = 8;            // r, r, target
+    static final int JLE = 9;            // r, r, target
+    static final int JEQ = 10;           // r, r, target
+    static final int JGE = 11;           // r, r, target
+    static final int JGT = 12;           // r, r, target
+    static final int JNE = 13;           // r, r, target
+    static final int NEW = 14;           // r, live refs, site
+    static final int HEAP_LOAD = 15;     // r, r(ref), site
+    static final int HEAP_STORE = 16;    // r(ref), r, site
+    static final int NULL_CHECK = 17;    // r(ref), site
+    static final int INPUT = 18;         // r, site
+    static final int OUTPUT = 19;        // r
+    static final int CALL = 20;          // function, argc, live refs, site, r...
+    static final int RET = 21;
+    static final int HALT = 22;
+
+    static final String[] NAMES = {
+        "CONST", "MOVE", "LOAD_GLOBAL", "STORE_GLOBAL", "ADD", "SUB", "MUL", "JUMP",
+        "JLT", "JLE", "JEQ", "JGE", "JGT", "JNE", "NEW", "HEAP_LOAD", "HEAP_STORE", "NULL_CHECK",
+        "INPUT", "OUTPUT", "CALL", "RET", "HALT"
+    };
+
+    // Number of operands after the opcode, CALL has argc more on top of this
+    static final int[] OPERANDS = {
+        2, 2, 2, 2, 3, 3, 3, 1,
+        3, 3, 3, 3, 3, 3, 3, 3, 3, 2,
+        2, 1, 4, 0, 0
+    };
+
+    // First int of a .cbc file. The low byte is the format, bumped with every change to an opcode's
+    // operands so a file from another build is refused instead of decoded with the wrong layout.
+    // 0x41 had no spans (the VM's first build, and the collector's, which added live refs to NEW and
+    // CALL), 0x42 added sites, 0x43 the CALL site operand.
+    static final int MAGIC = 0xC0DE3343;
+    static final int MAGIC_FORMAT_BITS = 0xFF;
+
+    int[] code;
+    int numGlobals;
+    int numRefGlobals;
+    // Per function: where its code starts, how many registers its frame needs and its name
+    int[] functionStart;
+    int[] functionRegisters;
+    String[] functionNames;
+    int mainFunction;
+    // ParseTreeNode spans of the instructions that can fail
+    long[] spans;
+
+    static int instructionLength(int[] code, int pc)
+    {
+        int op = code[pc];
+        int length = 1 + OPERANDS[op];
+        if (op == CALL) length += code[pc + 2];
+        return length;
+    }
+
+    void write(OutputStream stream) throws IOException
+    {
+        var out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeInt(numGlobals);
+        out.writeInt(numRefGlobals);
+        out.writeInt(mainFunction);
+        out.writeInt(functionStart.length);
+        for (int i = 0; i < functionStart.length; i++)
+        {
+            out.writeUTF(functionNames[i]);
+            out.writeInt(functionStart[i]);
+            out.writeInt(functionRegisters[i]);
+        }
+        out.writeInt(code.length);
+        for (int word : code)
+        {
+            out.writeInt(word);
+        }
+        out.writeInt(spans.length);
+        for (long span : spans)
+        {
+            out.writeLong(span);
+        }
+        out.flush();
+    }
+
+    // A file that doesn't pass verify() is refused, the VM trusts every operand
+    static BytecodeProgram read(InputStream stream) throws IOException
+    {
+        // Read whole so a count in a damaged file can be checked against what's left before it is allocated
+        var in = new DataInputStream(new ByteArrayInputStream(stream.readAllBytes()));
+        int magic = in.readInt();
+        if ((magic & ~MAGIC_FORMAT_BITS) == (MAGIC & ~MAGIC_FORMAT_BITS) && magic != MAGIC)
+        {
+            throw new IOException("compiled by another version of the interpreter, compile it again with --emit-bytecode.");
+        }
+        if (magic != MAGIC)
+        {
+            throw new IOException("not a compiled Core program.");
+        }
+        var program = new BytecodeProgram();
+        program.numGlobals = in.readInt();
+        program.numRefGlobals = in.readInt();
+        program.mainFunction = in.readInt();
+        int numFunctions = readCount(in, 10);
+        program.functionNames = new String[numFunctions];
+        program.functionStart = new int[numFunctions];
+        program.functionRegisters = new int[numFunctions];
+        for (int i = 0; i < numFunctions; i++)
+        {
+            program.functionNames[i] = in.readUTF();
+            program.functionStart[i] = in.readInt();
+            program.functionRegisters[i] = in.readInt();
+        }
+        program.code = new int[readCount(in, 4)];
+        for (int i = 0; i < program.code.length; i++)
+        {
+            program.code[i] = in.readInt();
+        }
+        program.spans = new long[readCount(in, 8)];
+        for (int i = 0; i < program.spans.length; i++)
+        {
+            program.spans[i] = in.readLong();
+        }
+        program.verify();
+        return program;
+    }
+
+    // A count of entries that take at least size bytes each
+    private static int readCount(DataInputStream in, int size) throws IOException
+    {
+        int count = in.readInt();
+        if (count < 0 || count > in.available() / size)
+        {
+            throw new IOException("the file is cut short.");
+        }
+        return count;
+    }
+
+    // Walks the code once and checks every operand: opcodes, registers against the frame size of their
+    // function, globals, jump targets, called functions and sites. Each function's code ends where the
+    // next one starts, its last instruction can't fall through into it, and only functions return.
+    // Frames and globals are only as big as the code can use, so a damaged count can't make the VM
+    // allocate more than the file is worth: every register is a parameter, a local its declaration
+    // sets or a temporary an instruction writes, and main sets every global.
+    void verify() throws IOException
+    {
+        int numFunctions = functionStart.length;
+        if (mainFunction < 0 || mainFunction >= numFunctions)
+        {
+            throw new IOException("no main function.");
+        }
+        if (numGlobals < 0 || numRefGlobals < 0 || numRefGlobals > numGlobals || numGlobals > codeLength(mainFunction)
+            || functionRegisters[mainFunction] > codeLength(mainFunction))
+        {
+            throw new IOException("more globals or registers in main than its code sets.");
+        }
+        // The function plus one of every instruction start, 0 inside an instruction
+        var owner = new int[code.length];
+        for (int f = 0; f < numFunctions; f++)
+        {
+            int start = functionStart[f];
+            int end = f + 1 < numFunctions ? functionStart[f + 1] : code.length;
+            if ((f == 0 ? start != 0 : start <= functionStart[f - 1]) || end <= start || end > code.length || functionRegisters[f] < 0)
+            {
+                throw new IOException("bad code range or frame of function " + f + ".");
+            }
+            int last = start;
+            for (int pc = start; pc < end; pc += instructionLength(code, pc))
+            {
+                int op = code[pc];
+                if (op < 0 || op >= OPERANDS.length)
+                {
+                    throw new IOException("invalid opcode " + op + " at " + pc + ".");
+                }
+                if (pc + 1 + OPERANDS[op] > end || op == CALL && (code[pc + 2] < 0 || pc + 5 + code[pc + 2] > end))
+                {
+                    throw new IOException("instruction at " + pc + " runs past the end of its function.");
+                }
+                owner[pc] = f + 1;
+                last = pc;
+                instruction(pc, f);
+            }
+            int op = code[last];
+            if (op != RET && op != HALT && op != JUMP)
+            {
+                throw new IOException("function " + f + " doesn't end in RET, HALT or JUMP.");
+            }
+        }
+
+        // Targets are checked once every instruction start is known
+        for (int pc = 0; pc < code.length; pc += instructionLength(code, pc))
+        {
+            int op = code[pc];
+            int target = op == JUMP ? code[pc + 1] : op >= JLT && op <= JNE ? code[pc + 3] : -1;
+            if (target != -1 && (target < 0 || target >= code.length || owner[target] != owner[pc]))
+            {
+                throw new IOException("jump at " + pc + " to " + target + " isn't to an instruction of its function.");
+            }
+        }
+    }
+
+    private void instruction(int pc, int f) throws IOException
+    {
+        int registers = functionRegisters[f];
+        switch (code[pc])
+        {
+            case CONST:
+                register(pc, 1, registers);
+                break;
+            case LOAD_GLOBAL:
+                register(pc, 1, registers);
+                global(pc, 2);
+                break;
+            case STORE_GLOBAL:
+                global(pc, 1);
+                register(pc, 2, registers);
+                break;
+            case NEW:
+                register(pc, 1, registers);
+                count(pc, 2, registers);
+                site(pc, 3);
+                break;
+            case HEAP_LOAD: case HEAP_STORE:
+                register(pc, 1, registers);
+                register(pc, 2, registers);
+                site(pc, 3);
+                break;
+            case NULL_CHECK: case INPUT:
+                register(pc, 1, registers);
+                site(pc, 2);
+                break;
+            case JLT: case JLE: case JEQ: case JGE: case JGT: case JNE:
+                register(pc, 1, registers);
+                register(pc, 2, registers);
+                break;
+            case CALL:
+            {
+                int callee = code[pc + 1];
+                if (callee < 0 || callee >= functionStart.length || callee == mainFunction)
+                {
+                    throw new IOException("call at " + pc + " to function " + callee + ".");
+                }
+                // The arguments become the first registers of the callee's frame
+                count(pc, 2, functionRegisters[callee]);
+                if (functionRegisters[callee] > code[pc + 2] + codeLength(callee))
+                {
+                    throw new IOException("function " + callee + " has more registers than its code sets.");
+                }
+                count(pc, 3, registers);
+                site(pc, 4);
+                for (int i = 0; i < code[pc + 2]; i++)
+                {
+                    register(pc, 5 + i, registers);
+                }
+                break;
+            }
+            case RET:
+                if (f == mainFunction)
+                {
+                    throw new IOException("RET in main at " + pc + ".");
+                }
+                break;
+            case JUMP: case HALT:
+                break;
+            default:
+                for (int i = 1; i <= OPERANDS[code[pc]]; i++)
+                {
+                    register(pc, i, registers);
+                }
+        }
+    }
+
+    // Ints of code in function f, 0 if its start is out of order
+    private int codeLength(int f)
+    {
+        int end = f + 1 < functionStart.length ? functionStart[f + 1] : code.length;
+        return Math.max(end - functionStart[f], 0);
+    }
+
+    private void register(int pc, int operand, int registers) throws IOException
+    {
+        if (code[pc + operand] < 0 || code[pc + operand] >= registers)
+        {
+            throw new IOException("register " + code[pc + operand] + " at " + pc + " is outside its frame of " + registers + ".");
+        }
+    }
+
+    // Live refs and argument counts, at most the number of registers they are in
+    private void count(int pc, int operand, int registers) throws IOException
+    {
+        if (code[pc + operand] < 0 || code[pc + operand] > registers)
+        {
+            throw new IOException("count " + code[pc + operand] + " at " + pc + " is more than the " + registers + " registers.");
+        }
+    }
+
+    private void global(int pc, int operand) throws IOException
+    {
+        if (code[pc + operand] < 0 || code[pc + operand] >= numGlobals)
+        {
+            throw new IOException("global " + code[pc + operand] + " at " + pc + " of " + numGlobals + ".");
+        }
+    }
+
+    private void site(int pc, int operand) throws IOException
+    {
+        if (code[pc + operand] < 0 || code[pc + operand] >= spans.length)
+        {
+            throw new IOException("site " + code[pc + operand] + " at " + pc + " of " + spans.length + ".");
+        }
+    }
+
+    void disassemble(PrintStream out)
+    {
+        out.println("globals: " + numGlobals + ", refs " + numRefGlobals);
+        for (int f = 0; f < functionStart.length; f++)
+        {
+            int end = f + 1 < functionStart.length ? functionStart[f + 1] : code.length;
+            out.println();
+            out.println(functionNames[f] + ": registers " + functionRegisters[f]);
+            for (int pc = functionStart[f]; pc < end; pc += instructionLength(code, pc))
+            {
+                out.println(disassemble(pc));
+            }
+        }
+    }
+
+    String disassemble(int pc)
+    {
+        int op = code[pc];
+        var line = new StringBuilder(String.format("%6d  %-13s", pc, NAMES[op]));
+        switch (op)
+        {
+            case CONST:
+                line.append("r").append(code[pc + 1]).append(", ").append(code[pc + 2]);
+                break;
+            case LOAD_GLOBAL:
+                line.append("r").append(code[pc + 1]).append(", g").append(code[pc + 2]);
+                break;
+            case STORE_GLOBAL:
+                line.append("g").append(code[pc + 1]).append(", r").append(code[pc + 2]);
+                break;
+            case JUMP:
+                line.append("-> ").append(code[pc + 1]);
+                break;
+            case NEW:
+                line.append("r").append(code[pc + 1]).append(", live refs ").append(code[pc + 2]);
+                site(line, code[pc + 3]);
+                break;
+            case HEAP_LOAD: case HEAP_STORE:
+                line.append("r").append(code[pc + 1]).append(", r").append(code[pc + 2]);
+                site(line, code[pc + 3]);
+                break;
+            case NULL_CHECK: case INPUT:
+                line.append("r").append(code[pc + 1]);
+                site(line, code[pc + 2]);
+                break;
+            case JLT: case JLE: case JEQ: case JGE: case JGT: case JNE:
+                line.append("r").append(code[pc + 1]).append(", r").append(code[pc + 2]).append(" -> ").append(code[pc + 3]);
+                break;
+            case CALL:
+                line.append(functionNames[code[pc + 1]]).append("(");
+                for (int i = 0; i < code[pc + 2]; i++)
+                {
+                    line.append(i == 0 ? "r" : ", r").append(code[pc + 5 + i]);
+                }
+                line.append("), live refs ").append(code[pc + 3]);
+                site(line, code[pc + 4]);
+                break;
+            default:
+                for (int i = 1; i <= OPERANDS[op]; i++)
+                {
+                    line.append(i == 1 ? "r" : ", r").append(code[pc + i]);
+                }
+        }
+        return line.toString();
+    }
+
+    private void site(StringBuilder line, int site)
+    {
+        line.append("  @").append(ParseTreeNode.format(spans[site]));
+    }
+}
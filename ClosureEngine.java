@@ -0,0 +1,453 @@
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+// Alternative to the Executor that compiles the resolved tree once into a tree of closures and then
+// runs those. Every decision the Executor makes per evaluation (which kind of statement, global or
+// local slot, int or ref, which operator) is made once here at compile time, so each closure only
+// does its own work and calls its children directly.
+public class ClosureEngine implements Heap.Roots {
+    static final int NULL_REF = CoreRuntime.NULL_REF;
+
+    interface StmtNode
+    {
+        void execute(int[] frame);
+    }
+
+    interface IntNode
+    {
+        int evalInt(int[] frame);
+    }
+
+    interface CondNode
+    {
+        boolean test(int[] frame);
+    }
+
+    static class CompiledFunc
+    {
+        int frameSize;
+        StmtNode body;
+    }
+
+    CoreRuntime runtime;
+    int[] globals;
+    IdentityHashMap<ParseTreeNode.FuncDecl, CompiledFunc> functions;
+    StmtNode main;
+    int mainFrameSize;
+    // Frames of the callers and how many of their ref slots are in scope, for the garbage collector
+    int[][] callerFrames;
+    int[] callerLiveRefs;
+    int depth;
+    // Frame of the call at each depth. A callee's frame is dead once it returns, so the next call at
+    // the same depth reuses it and a call only allocates when it needs a bigger frame than before.
+    int[][] framePool;
+    // Frame doing the current allocation
+    int[] allocatingFrame;
+    int allocatingLiveRefs;
+
+    ClosureEngine(ParseTreeNode.Program p, CoreRuntime runtime)
+    {
+        this.runtime = runtime;
+        globals = runtime.globals;
+        functions = new IdentityHashMap<>();
+        callerFrames = new int[64][];
+        callerLiveRefs = new int[64];
+        framePool = new int[64][];
+        runtime.setRoots(this);
+        // Compile every function up front so calls can be bound directly to their CompiledFunc
+        for (var decl : p.declSeq.funcDeclSeq)
+        {
+            function(decl);
+        }
+        main = stmtSeq(p.stmtSeq);
+        mainFrameSize = p.frameSize;
+    }
+
+    void run()
+    {
+        main.execute(new int[mainFrameSize]);
+    }
+
+    public void markRoots(Heap heap)
+    {
+        for (int i = 0; i < allocatingLiveRefs; i++)
+        {
+            heap.mark(allocatingFrame[i]);
+        }
+        for (int d = 0; d < depth; d++)
+        {
+            for (int i = 0; i < callerLiveRefs[d]; i++)
+            {
+                heap.mark(callerFrames[d][i]);
+            }
+        }
+    }
+
+    private void pushCaller(int[] frame, int liveRefs)
+    {
+        if (depth == callerFrames.length)
+        {
+            callerFrames = Arrays.copyOf(callerFrames, depth * 2);
+            callerLiveRefs = Arrays.copyOf(callerLiveRefs, depth * 2);
+            framePool = Arrays.copyOf(framePool, depth * 2);
+        }
+        callerFrames[depth] = frame;
+        callerLiveRefs[depth] = liveRefs;
+        depth++;
+    }
+
+    private CompiledFunc function(ParseTreeNode.FuncDecl decl)
+    {
+        var func = functions.get(decl);
+        if (func == null)
+        {
+            // Registered before compiling the body so recursive calls find it
+            func = new CompiledFunc();
+            func.frameSize = decl.frameSize;
+            functions.put(decl, func);
+            func.body = stmtSeq(decl.body);
+        }
+        return func;
+    }
+
+    private StmtNode stmtSeq(List<ParseTreeNode.Stmt> stmts)
+    {
+        if (stmts.size() == 1)
+        {
+            return stmt(stmts.get(0));
+        }
+        else if (stmts.size() == 2)
+        {
+            StmtNode first = stmt(stmts.get(0));
+            StmtNode second = stmt(stmts.get(1));
+            return frame -> {
+                first.execute(frame);
+                second.execute(frame);
+            };
+        }
+
+        StmtNode[] nodes = new StmtNode[stmts.size()];
+        for (int i = 0; i < nodes.length; i++)
+        {
+            nodes[i] = stmt(stmts.get(i));
+        }
+        return frame -> {
+            for (StmtNode node : nodes)
+            {
+                node.execute(frame);
+            }
+        };
+    }
+
+    private StmtNode stmt(ParseTreeNode.Stmt stmt)
+    {
+        if (stmt instanceof ParseTreeNode.Assign)
+        {
+            return assign((ParseTreeNode.Assign)stmt);
+        }
+        else if (stmt instanceof ParseTreeNode.If)
+        {
+            return ifStmt((ParseTreeNode.If)stmt);
+        }
+        else if (stmt instanceof ParseTreeNode.Loop)
+        {
+            return loop((ParseTreeNode.Loop)stmt);
+        }
+        else if (stmt instanceof ParseTreeNode.Input)
+        {
+            return input((ParseTreeNode.Input)stmt);
+        }
+        else if (stmt instanceof ParseTreeNode.Output)
+        {
+            return output((ParseTreeNode.Output)stmt);
+        }
+        else if (stmt instanceof ParseTreeNode.VarDecl)
+        {
+            return decl((ParseTreeNode.VarDecl)stmt);
+        }
+        else
+        {
+            return funcCall((ParseTreeNode.FuncCall)stmt);
+        }
+    }
+
+    private StmtNode decl(ParseTreeNode.VarDecl decl)
+    {
+        int value = decl.type == VarType.INT ? 0 : NULL_REF;
+        // Only locals are declared inside statement sequences
+        int[] indices = new int[decl.slots.length];
+        for (int i = 0; i < indices.length; i++)
+        {
+            indices[i] = decl.slots[i].index;
+        }
+        if (indices.length == 1)
+        {
+            int index = indices[0];
+            return frame -> frame[index] = value;
+        }
+        return frame -> {
+            for (int index : indices)
+            {
+                frame[index] = value;
+            }
+        };
+    }
+
+    // Frame for the call just pushed with pushCaller, kept at the caller's index
+    private int[] calleeFrame(int frameSize)
+    {
+        int[] frame = framePool[depth - 1];
+        if (frame == null || frame.length < frameSize)
+        {
+            frame = new int[frameSize];
+            framePool[depth - 1] = frame;
+        }
+        return frame;
+    }
+
+    private StmtNode funcCall(ParseTreeNode.FuncCall stmt)
+    {
+        CompiledFunc func = function(stmt.func);
+        int liveRefs = stmt.liveRefs;
+        long span = stmt.span;
+        IntNode[] args = new IntNode[stmt.args.length];
+        for (int i = 0; i < args.length; i++)
+        {
+            args[i] = load(stmt.args[i]);
+        }
+        return frame -> {
+            if (depth == runtime.maxDepth)
+            {
+                runtime.callDepthExceeded(span);
+            }
+            pushCaller(frame, liveRefs);
+            // Params take the first slots of the new frame, the rest are set by their decls before use
+            int[] calleeFrame = calleeFrame(func.frameSize);
+            for (int i = 0; i < args.length; i++)
+            {
+                calleeFrame[i] = args[i].evalInt(frame);
+            }
+            func.body.execute(calleeFrame);
+            depth--;
+        };
+    }
+
+    private StmtNode output(ParseTreeNode.Output stmt)
+    {
+        IntNode value = expr(stmt.expr);
+        return frame -> runtime.output(value.evalInt(frame));
+    }
+
+    private StmtNode input(ParseTreeNode.Input stmt)
+    {
+        long span = stmt.span;
+        if (stmt.slot.type == VarType.INT)
+        {
+            return store(stmt.slot, frame -> runtime.input(span));
+        }
+        IntNode ref = load(stmt.slot);
+        return frame -> runtime.heapStore(ref.evalInt(frame), runtime.input(span), span);
+    }
+
+    private StmtNode loop(ParseTreeNode.Loop stmt)
+    {
+        CondNode condition = condition(stmt.condition);
+        StmtNode body = stmtSeq(stmt.body);
+        return frame -> {
+            while (condition.test(frame))
+            {
+                body.execute(frame);
+            }
+        };
+    }
+
+    private StmtNode ifStmt(ParseTreeNode.If stmt)
+    {
+        CondNode condition = condition(stmt.condition);
+        StmtNode ifBody = stmtSeq(stmt.ifBody);
+        if (stmt.elseBody == null)
+        {
+            return frame -> {
+                if (condition.test(frame)) ifBody.execute(frame);
+            };
+        }
+        StmtNode elseBody = stmtSeq(stmt.elseBody);
+        return frame -> {
+            if (condition.test(frame)) ifBody.execute(frame);
+            else elseBody.execute(frame);
+        };
+    }
+
+    private StmtNode assign(ParseTreeNode.Assign stmt)
+    {
+        long span = stmt.span;
+        if (stmt.slot.type == VarType.INT)
+        {
+            return store(stmt.slot, expr(stmt.exprRHS));
+        }
+        // id = new
+        else if (stmt.exprRHS == null && stmt.idRHS == null)
+        {
+            int liveRefs = stmt.liveRefs;
+            return store(stmt.slot, frame -> {
+                allocatingFrame = frame;
+                allocatingLiveRefs = liveRefs;
+                return runtime.newHeapVar(span);
+            });
+        }
+        // id = ref id
+        else if (stmt.exprRHS == null)
+        {
+            return store(stmt.slot, load(stmt.slotRHS));
+        }
+        // id = expr
+        else
+        {
+            IntNode ref = load(stmt.slot);
+            IntNode value = expr(stmt.exprRHS);
+            return frame -> {
+                int target = ref.evalInt(frame);
+                if (target == NULL_REF)
+                {
+                    runtime.error(span, "Can't assign a value to a null reference.");
+                }
+                runtime.heapStore(target, value.evalInt(frame), span);
+            };
+        }
+    }
+
+    private StmtNode store(ParseTreeNode.Slot slot, IntNode value)
+    {
+        int index = slot.index;
+        if (slot.global)
+        {
+            return frame -> globals[index] = value.evalInt(frame);
+        }
+        return frame -> frame[index] = value.evalInt(frame);
+    }
+
+    // Raw value of the slot, for a ref this is the heap index rather than the value it points at
+    private IntNode load(ParseTreeNode.Slot slot)
+    {
+        int index = slot.index;
+        if (slot.global)
+        {
+            return frame -> globals[index];
+        }
+        return frame -> frame[index];
+    }
+
+    private CondNode condition(ParseTreeNode.Cond condition)
+    {
+        if (condition.cond == null)
+        {
+            return comparison(condition.cmpr);
+        }
+        else if (condition.cmpr == null)
+        {
+            CondNode negated = condition(condition.cond);
+            return frame -> !negated.test(frame);
+        }
+        CondNode lhs = comparison(condition.cmpr);
+        CondNode rhs = condition(condition.cond);
+        return frame -> lhs.test(frame) || rhs.test(frame);
+    }
+
+    private CondNode comparison(ParseTreeNode.Cmpr cmpr)
+    {
+        IntNode lhs = expr(cmpr.lhs);
+        IntNode rhs = expr(cmpr.rhs);
+        if (cmpr.comparison == Core.EQUAL) return frame -> lhs.evalInt(frame) == rhs.evalInt(frame);
+        else if (cmpr.comparison == Core.LESS) return frame -> lhs.evalInt(frame) < rhs.evalInt(frame);
+        else return frame -> lhs.evalInt(frame) <= rhs.evalInt(frame);
+    }
+
+    private IntNode expr(ParseTreeNode.Expr expr)
+    {
+        IntNode first = term(expr.terms[0]);
+        int n = expr.terms.length;
+        if (n == 1)
+        {
+            return first;
+        }
+        if (n == 2)
+        {
+            IntNode second = term(expr.terms[1]);
+            if (expr.operators[0] == Core.ADD)
+            {
+                return frame -> first.evalInt(frame) + second.evalInt(frame);
+            }
+            return frame -> first.evalInt(frame) - second.evalInt(frame);
+        }
+
+        // Expressions are right recursive, so a - b - c is a - (b - c) = a - b + c. The sign of every
+        // term is worked out here, then the terms are summed left to right in one loop.
+        IntNode[] rest = new IntNode[n - 1];
+        boolean[] negative = new boolean[n - 1];
+        boolean sign = false;
+        for (int i = 1; i < n; i++)
+        {
+            sign ^= expr.operators[i - 1] == Core.SUB;
+            rest[i - 1] = term(expr.terms[i]);
+            negative[i - 1] = sign;
+        }
+        return frame -> {
+            int value = first.evalInt(frame);
+            for (int i = 0; i < rest.length; i++)
+            {
+                int term = rest[i].evalInt(frame);
+                value = negative[i] ? value - term : value + term;
+            }
+            return value;
+        };
+    }
+
+    private IntNode term(ParseTreeNode.Term term)
+    {
+        IntNode first = factor(term.factors[0]);
+        int n = term.factors.length;
+        if (n == 1)
+        {
+            return first;
+        }
+        if (n == 2)
+        {
+            IntNode second = factor(term.factors[1]);
+            return frame -> first.evalInt(frame) * second.evalInt(frame);
+        }
+        IntNode[] rest = new IntNode[n - 1];
+        for (int i = 1; i < n; i++)
+        {
+            rest[i - 1] = factor(term.factors[i]);
+        }
+        return frame -> {
+            int value = first.evalInt(frame);
+            for (IntNode factor : rest)
+            {
+                value *= factor.evalInt(frame);
+            }
+            return value;
+        };
+    }
+
+    private IntNode factor(ParseTreeNode.Factor factor)
+    {
+        if (factor.slot != null)
+        {
+            IntNode value = load(factor.slot);
+            if (factor.slot.type == VarType.INT)
+            {
+                return value;
+            }
+            long span = factor.span;
+            return frame -> runtime.heapLoad(value.evalInt(frame), span);
+        }
+        else if (factor.expr != null)
+        {
+            return expr(factor.expr);
+        }
+        int constant = factor.CONST;
+        return frame -> constant;
+    }
+}
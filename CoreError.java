@@ -0,0 +1,12 @@
+// An error that stops a Core program: a scan, syntax or semantic error from the front end or a runtime
+// error. The message is the text to print, the output the program made before it has already gone to
+// its OutputSink. Main prints it and exits with status 1, the Daemon sends it back to the job's client.
+public class CoreError extends RuntimeException
+{
+    private static final long serialVersionUID = 1L;
+
+    CoreError(String message)
+    {
+        super(message, null, false, false);
+    }
+}
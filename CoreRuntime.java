@@ -0,0 +1,127 @@
+// State shared by every execution engine: static memory, heap memory, the input values from the
+// .data file and the output stream. Engines only differ in how they walk the program.
+public class CoreRuntime implements Heap.Roots {
+    // Value of a ref variable that doesn't point at anything yet
+    static final int NULL_REF = -1;
+    // Calls deeper than this stop the program with an error instead of overflowing the Java stack
+    static final int DEFAULT_MAX_DEPTH = 10000;
+
+    int[] globals;
+    // Ref globals come first in globals
+    int numRefGlobals;
+    Heap heap;
+    InputReader data;
+    OutputSink out;
+    Heap.Roots frameRoots;
+    int maxDepth = DEFAULT_MAX_DEPTH;
+
+    CoreRuntime(ParseTreeNode.Program p, InputReader data, OutputSink out)
+    {
+        this(p.numGlobals, p.numRefGlobals, data, out);
+
+        // All global decls are static variables, they start out as 0 or null
+        for (var decl : p.declSeq.declSeq)
+        {
+            for (var slot : decl.slots)
+            {
+                globals[slot.index] = decl.type == VarType.INT ? 0 : NULL_REF;
+            }
+        }
+    }
+
+    CoreRuntime(int numGlobals, int numRefGlobals, InputReader data, OutputSink out)
+    {
+        globals = new int[numGlobals];
+        this.numRefGlobals = numRefGlobals;
+        heap = new Heap(Heap.DEFAULT_THRESHOLD);
+        this.data = data;
+        this.out = out;
+    }
+
+    // Called by an engine that can list the refs held by its frames. Without it the heap never
+    // collects, since the engine's refs would be invisible to the collector.
+    void setRoots(Heap.Roots frameRoots)
+    {
+        this.frameRoots = frameRoots;
+        heap.roots = this;
+    }
+
+    public void markRoots(Heap heap)
+    {
+        for (int i = 0; i < numRefGlobals; i++)
+        {
+            heap.mark(globals[i]);
+        }
+        frameRoots.markRoots(heap);
+    }
+
+    // The operations that can fail take the span of the source they run for, so the error can point at
+    // it. The span is only looked at on the error path.
+
+    // Returns the ref value of a fresh heap cell
+    int newHeapVar(long span)
+    {
+        int ref = heap.allocate();
+        if (ref == NULL_REF)
+        {
+            error(span, "Out of heap memory, the limit is " + heap.limit + " cells.");
+        }
+        return ref;
+    }
+
+    int heapLoad(int ref, long span)
+    {
+        if (ref == NULL_REF)
+        {
+            error(span, "Can't read the value of a null reference.");
+        }
+        return heap.get(ref);
+    }
+
+    void heapStore(int ref, int value, long span)
+    {
+        if (ref == NULL_REF)
+        {
+            error(span, "Can't assign a value to a null reference.");
+        }
+        heap.set(ref, value);
+    }
+
+    int input(long span)
+    {
+        if (out.flushOnInput)
+        {
+            out.flush();
+        }
+        if (!data.hasNext())
+        {
+            error(span, "No more input values available in data file");
+        }
+        try
+        {
+            return data.next();
+        }
+        catch (NumberFormatException e)
+        {
+            error(span, e.getMessage());
+            return 0;
+        }
+    }
+
+    // Called by an engine when the call at span would go past maxDepth active calls
+    void callDepthExceeded(long span)
+    {
+        error(span, "Call depth limit of " + maxDepth + " exceeded.");
+    }
+
+    void output(int value)
+    {
+        out.println(value);
+    }
+
+    // Stops the program with "ERROR (line:column): message", or just the message if span is 0
+    void error(long span, String message)
+    {
+        throw new CoreError(span == 0 ? message : "ERROR (" + ParseTreeNode.format(span) + "): " + message);
+    }
+}
@@ -0,0 +1,204 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+// --daemon=path keeps one JVM running and executes the programs sent to the Unix domain socket at path,
+// so the JIT compiled interpreter is reused across runs instead of warming up again for every program.
+// Every connection is one job, run on its own thread with the options the daemon was started with: the
+// client sends the length of the program's source and the source, then the contents of the data file,
+// and closes its side. The program starts as soon as its source is there and reads the data as it
+// arrives. Output comes back as chunks, an int length and that many bytes, the same text Main would
+// print, ended by a chunk of length 0 and the exit status. --client=path file.code file.data sends one
+// job and prints its output.
+public class Daemon
+{
+    Main options;
+    int jobs;
+
+    Daemon(Main options)
+    {
+        this.options = options;
+    }
+
+    void serve(Path socket) throws IOException
+    {
+        // A socket file left behind by a daemon that was killed, anything else at the path is kept
+        if (Files.exists(socket) && Files.readAttributes(socket, BasicFileAttributes.class).isOther())
+        {
+            Files.delete(socket);
+        }
+        var server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socket));
+        System.out.println("Listening on " + socket);
+        while (true)
+        {
+            SocketChannel channel = server.accept();
+            // Java 17 has no virtual threads, so every job gets a platform thread of the default stack size
+            var thread = new Thread(() -> job(channel), "job-" + ++jobs);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void job(SocketChannel channel)
+    {
+        try (channel)
+        {
+            var length = ByteBuffer.allocate(4);
+            readFully(channel, length);
+            var source = ByteBuffer.allocate(length.getInt(0));
+            readFully(channel, source);
+
+            var chunks = new ChunkStream(channel);
+            var out = new OutputSink(chunks);
+            int status = 0;
+            try
+            {
+                // An option value error is this job's error, the daemon and the other jobs go on
+                Main.setFlush(out, options.flush, false);
+                Parser parser = options.frontEnd("job", source.array());
+                options.execute(parser, new InputReader(channel), out);
+            }
+            catch (CoreError e)
+            {
+                out.println(e.getMessage());
+                out.flush();
+                status = 1;
+            }
+            chunks.end(status);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // The client went away or sent something that isn't a job, the other jobs go on
+            System.err.println(Thread.currentThread().getName() + ": " + e);
+        }
+    }
+
+    // Runs file.code on the daemon at socket with file.data, "-" for stdin, and returns the exit status
+    static int submit(Path socket, String codeFile, String dataFile) throws IOException
+    {
+        byte[] source = Files.readAllBytes(Path.of(codeFile));
+        InputStream data = dataFile.equals("-") ? System.in : Files.newInputStream(Path.of(dataFile));
+        try (var channel = SocketChannel.open(UnixDomainSocketAddress.of(socket)))
+        {
+            var header = ByteBuffer.allocate(4).putInt(source.length).flip();
+            writeFully(channel, header);
+            writeFully(channel, ByteBuffer.wrap(source));
+
+            // The data is sent while output comes back, a program can wait for input that depends on its output
+            var sender = new Thread(() -> sendData(channel, data));
+            sender.setDaemon(true);
+            sender.start();
+
+            var length = ByteBuffer.allocate(4);
+            var chunk = ByteBuffer.allocate(OutputSink.BUFFER_SIZE);
+            while (true)
+            {
+                length.clear();
+                readFully(channel, length);
+                int size = length.getInt(0);
+                if (size == 0)
+                {
+                    length.clear();
+                    readFully(channel, length);
+                    System.out.flush();
+                    return length.getInt(0);
+                }
+                if (size > chunk.capacity())
+                {
+                    chunk = ByteBuffer.allocate(size);
+                }
+                chunk.clear().limit(size);
+                readFully(channel, chunk);
+                System.out.write(chunk.array(), 0, size);
+                System.out.flush();
+            }
+        }
+    }
+
+    private static void sendData(SocketChannel channel, InputStream data)
+    {
+        try (data)
+        {
+            byte[] buffer = new byte[1 << 16];
+            for (int read = data.read(buffer); read >= 0; read = data.read(buffer))
+            {
+                writeFully(channel, ByteBuffer.wrap(buffer, 0, read));
+            }
+            channel.shutdownOutput();
+        }
+        catch (IOException e)
+        {
+            // The job ended before it read all the data, its output still comes back
+        }
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer) < 0)
+            {
+                throw new EOFException("Connection closed in the middle of a message.");
+            }
+        }
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+    }
+
+    // What a job's OutputSink writes to, every write goes out as one chunk. Writes go straight to the
+    // channel, not through Channels.newOutputStream, whose lock would also block while the job's
+    // InputReader waits for data on the same channel.
+    static class ChunkStream extends OutputStream
+    {
+        SocketChannel channel;
+        ByteBuffer header = ByteBuffer.allocate(4);
+
+        ChunkStream(SocketChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException
+        {
+            // Length 0 ends the output, an empty flush sends nothing
+            if (length == 0)
+            {
+                return;
+            }
+            header.clear();
+            writeFully(channel, header.putInt(length).flip());
+            writeFully(channel, ByteBuffer.wrap(bytes, offset, length));
+        }
+
+        void end(int status) throws IOException
+        {
+            header.clear();
+            writeFully(channel, header.putInt(0).flip());
+            header.clear();
+            writeFully(channel, header.putInt(status).flip());
+        }
+    }
+}
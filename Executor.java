@@ -1,164 +1,162 @@
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 
-public class Executor {
-    private class VariableInfo
+public class Executor implements Heap.Roots {
+    static final int NULL_REF = CoreRuntime.NULL_REF;
+
+    CoreRuntime runtime;
+    ParseTreeNode.Program program;
+    int[] globals;
+    // Locals of every active call, each frame right after its caller's. A call only moves fp and sp,
+    // the array grows when a frame doesn't fit and is never shrunk.
+    int[] stack;
+    int fp;
+    int sp;
+    // Number of ref slots (they come first in a frame) in scope at the statement the frame is executing
+    int liveRefs;
+    // fp and liveRefs of the callers, indexed by call depth
+    int[] callerFp;
+    int[] callerLiveRefs;
+    int depth;
+    // Parses function bodies on their first call with --lazy
+    LazyParser lazyParser;
+
+    Executor(ParseTreeNode.Program p, CoreRuntime runtime)
     {
-        VarType type;
-        Integer value;
-        VariableInfo(VarType type, Integer value)
-        {
-            this.type = type;
-            this.value = value;
-        }
+        this.runtime = runtime;
+        program = p;
+        globals = runtime.globals;
+        stack = new int[Math.max(256, p.frameSize)];
+        sp = p.frameSize;
+        callerFp = new int[64];
+        callerLiveRefs = new int[64];
+        runtime.setRoots(this);
     }
 
-    private class FuncInfo
+    void run()
     {
-        List<String> params;
-        List<ParseTreeNode.Stmt> body;
-        FuncInfo(List<String> params, List<ParseTreeNode.Stmt> body)
-        {
-            this.params = params;
-            this.body = body;
-        }
+        program(program);
     }
 
-    Frame<VariableInfo> currentFrame;
-    Frame<VariableInfo> globalFrame;
-    Scope<VariableInfo> globalScope;
-    // Scope<VariableInfo> staticVariables;
-    // Scope<VariableInfo> currentScope;
-    List<Integer> heap;
-    HashMap<String, FuncInfo> functions;
-    Scanner dataScanner;
-
-    Executor(ParseTreeNode.Program p, String dataFilename) throws IOException
+    public void markRoots(Heap heap)
     {
-        globalFrame = new Frame<>();
-        currentFrame = globalFrame;
-        globalScope = globalFrame.currentScope;
-        heap = new ArrayList<>();
-        functions = new HashMap<>();
-        dataScanner = new Scanner(dataFilename);
-        program(p);
+        for (int i = 0; i < liveRefs; i++)
+        {
+            heap.mark(stack[fp + i]);
+        }
+        for (int d = 0; d < depth; d++)
+        {
+            for (int i = 0; i < callerLiveRefs[d]; i++)
+            {
+                heap.mark(stack[callerFp[d] + i]);
+            }
+        }
     }
 
-    private void executeFunc(String funcName, List<String> args)
+    void executeFunc(ParseTreeNode.FuncCall call)
     {
-        // Push new frame
-        var funcInfo = functions.get(funcName);
-        List<VariableInfo> paramsValues = new ArrayList<>();
-        for (int i = 0; i < args.size(); i++)
-        {
-            String arg = args.get(i);
-            paramsValues.add(currentScope().Get(arg));
-        }
-        Frame<VariableInfo> newFrame = new Frame<>(globalScope, funcInfo.params, paramsValues, currentFrame);
-        currentFrame = newFrame;
+        pushFrame(call);
 
         // Execute function body
-        stmtSeq(funcInfo.body);
+        stmtSeq(call.func.body);
 
         popFrame();
     }
 
-    private void popFrame()
-    {
-        currentFrame = currentFrame.parent;
-    }
-
-    private void pushScope()
+    // Makes the callee's frame current, params take its first slots
+    void pushFrame(ParseTreeNode.FuncCall call)
     {
-        currentFrame.pushScope();
-    }
+        if (call.func.body == null)
+        {
+            // An error in the body has to come after the output so far
+            runtime.out.flush();
+            lazyParser.parseBody(call.func);
+        }
+        var args = call.args;
+        if (depth == runtime.maxDepth)
+        {
+            runtime.callDepthExceeded(call.span);
+        }
 
-    private void popScope()
-    {
-        currentFrame.popScope();
+        int calleeFp = sp;
+        int calleeSp = calleeFp + call.func.frameSize;
+        if (calleeSp > stack.length)
+        {
+            stack = Arrays.copyOf(stack, Math.max(calleeSp, stack.length * 2));
+        }
+        for (int i = 0; i < args.length; i++)
+        {
+            stack[calleeFp + i] = load(args[i]);
+        }
+        if (depth == callerFp.length)
+        {
+            callerFp = Arrays.copyOf(callerFp, depth * 2);
+            callerLiveRefs = Arrays.copyOf(callerLiveRefs, depth * 2);
+        }
+        callerFp[depth] = fp;
+        callerLiveRefs[depth] = liveRefs;
+        depth++;
+        fp = calleeFp;
+        sp = calleeSp;
+        liveRefs = 0;
     }
 
-    private Scope<VariableInfo> currentScope()
+    void popFrame()
     {
-        return currentFrame.currentScope;
+        depth--;
+        sp = fp;
+        fp = callerFp[depth];
+        liveRefs = callerLiveRefs[depth];
     }
 
-    private void newHeapVar(String name)
+    private int load(ParseTreeNode.Slot slot)
     {
-        heap.add(0);
-        var newValue = new VariableInfo(VarType.REF, heap.size() - 1);
-        currentScope().Assign(name, newValue);
+        return slot.global ? globals[slot.index] : stack[fp + slot.index];
     }
 
-    private void setHeapVar(String name, Integer newValue)
+    private void store(ParseTreeNode.Slot slot, int value)
     {
-        var varInfo = currentScope().Get(name);
-        int index = varInfo.value;
-        heap.set(index, newValue);
+        if (slot.global) globals[slot.index] = value;
+        else stack[fp + slot.index] = value;
     }
 
-    private Integer getNextInputValue()
+    void newHeapVar(ParseTreeNode.Assign stmt)
     {
-        if (dataScanner.currentToken() == Core.EOF) return null;
-        Integer value = dataScanner.getCONST();
-        dataScanner.nextToken();
-        return value;
+        liveRefs = stmt.liveRefs;
+        store(stmt.slot, runtime.newHeapVar(stmt.span));
     }
 
-    private void error(String message)
+    private void setHeapVar(ParseTreeNode.Slot slot, int newValue, long span)
     {
-        System.out.println(message);
-        System.exit(1);
+        runtime.heapStore(load(slot), newValue, span);
     }
 
     void program(ParseTreeNode.Program p)
     {
-        declSeq(p.declSeq);
+        // Static variables were set up by the runtime and function bodies are reached through
+        // FuncCall.func, so only the main body is left
         stmtSeq(p.stmtSeq);
     }
 
-    void declSeq(ParseTreeNode.DeclSeq decls)
-    {
-        // All decls here are static variables since declSeq can only occur in global scope
-        for (var d : decls.declSeq)
-        {
-            decl(d);
-        }
-
-        for (var d : decls.funcDeclSeq)
-        {
-            funcDecl(d);
-        }
-    }
-
     void stmtSeq(List<ParseTreeNode.Stmt> stmts)
     {
-        pushScope();
-        for (var s : stmts)
+        // Indexed loop so no Iterator is allocated per block entry
+        for (int i = 0; i < stmts.size(); i++)
         {
-            stmt(s);
+            stmt(stmts.get(i));
         }
-        popScope();
     }
 
     void decl(ParseTreeNode.VarDecl decl)
     {
-        Integer value = decl.type == VarType.INT ? 0 : null;
+        int value = decl.type == VarType.INT ? 0 : NULL_REF;
 
-        for (var id : decl.ids)
+        for (var slot : decl.slots)
         {
-            currentScope().Declare(id, new VariableInfo(decl.type, value));
+            store(slot, value);
         }
     }
 
-    void funcDecl(ParseTreeNode.FuncDecl decl)
-    {
-        FuncInfo value = new FuncInfo(decl.params, decl.body);
-        functions.put(decl.id, value);
-    }
-
     void stmt(ParseTreeNode.Stmt stmt)
     {
         if (stmt instanceof ParseTreeNode.Assign)
@@ -191,47 +189,51 @@ public class Executor {
         }
     }
 
-    private void funcCall(ParseTreeNode.FuncCall stmt) {
-        executeFunc(stmt.id, stmt.params);
+    void funcCall(ParseTreeNode.FuncCall stmt) {
+        liveRefs = stmt.liveRefs;
+        executeFunc(stmt);
     }
 
     private void output(ParseTreeNode.Output stmt) {
-        System.out.println(expr(stmt.expr));
+        runtime.output(expr(stmt.expr));
     }
 
-    private Integer expr(ParseTreeNode.Expr expr) {
-        Integer lhs = term(expr.lhs);
-        if (expr.rhs != null)
+    // a - b - c is a - (b - c), which is a - b + c: every - flips the sign of the terms after it
+    private int expr(ParseTreeNode.Expr expr) {
+        var terms = expr.terms;
+        int value = term(terms[0]);
+        boolean negative = false;
+        for (int i = 1; i < terms.length; i++)
         {
-            Integer rhs = expr(expr.rhs);
-            if (expr.operator == Core.ADD)
+            if (expr.operators[i - 1] == Core.SUB)
             {
-                lhs += rhs;
+                negative = !negative;
             }
-            else lhs -= rhs;
+            int rhs = term(terms[i]);
+            if (negative) value -= rhs;
+            else value += rhs;
         }
-        return lhs;
+        return value;
     }
 
-    private Integer term(ParseTreeNode.Term term) {
-        Integer lhs = factor(term.lhs);
-        if (term.rhs != null)
+    private int term(ParseTreeNode.Term term) {
+        var factors = term.factors;
+        int value = factor(factors[0]);
+        for (int i = 1; i < factors.length; i++)
         {
-            Integer rhs = term(term.rhs);
-            lhs *= rhs;
+            value *= factor(factors[i]);
         }
-        return lhs;
+        return value;
     }
 
-    private Integer factor(ParseTreeNode.Factor lhs) {
-        if (lhs.id != null)
+    private int factor(ParseTreeNode.Factor lhs) {
+        if (lhs.slot != null)
         {
-            var varInfo = currentScope().Get(lhs.id);
-            if (varInfo.type == VarType.INT) return varInfo.value;
+            int value = load(lhs.slot);
+            if (lhs.slot.type == VarType.INT) return value;
             else 
             {
-                if (varInfo.value == null) return null;
-                else return heap.get(varInfo.value);
+                return runtime.heapLoad(value, lhs.span);
             }
         }
         else if (lhs.expr != null)
@@ -242,21 +244,15 @@ public class Executor {
     }
 
     private void input(ParseTreeNode.Input stmt) {
-        var inputValue = getNextInputValue();
-        if (inputValue == null)
-        {
-            error("No more input values available in data file");
-        }
+        int inputValue = runtime.input(stmt.span);
 
-        var varInfo = currentScope().Get(stmt.id);
-        if (varInfo.type == VarType.INT)
+        if (stmt.slot.type == VarType.INT)
         {
-            var newValue = new VariableInfo(VarType.INT, inputValue);
-            currentScope().Assign(stmt.id, newValue);
+            store(stmt.slot, inputValue);
         }
         else
         {
-            setHeapVar(stmt.id, inputValue);
+            setHeapVar(stmt.slot, inputValue, stmt.span);
         }
     }
 
@@ -267,7 +263,7 @@ public class Executor {
         }
     }
 
-    private boolean condition(ParseTreeNode.Cond condition) {
+    boolean condition(ParseTreeNode.Cond condition) {
         if (condition.cond == null)
         {
             return comparison(condition.cmpr);
@@ -280,8 +276,8 @@ public class Executor {
     }
 
     private boolean comparison(ParseTreeNode.Cmpr cmpr) {
-        var lhs = expr(cmpr.lhs);
-        var rhs = expr(cmpr.rhs);
+        int lhs = expr(cmpr.lhs);
+        int rhs = expr(cmpr.rhs);
         if (cmpr.comparison == Core.EQUAL) return lhs == rhs;
         else if (cmpr.comparison == Core.LESS) return lhs < rhs;
         else return lhs <= rhs;
@@ -299,36 +295,30 @@ public class Executor {
     }
 
     private void assign(ParseTreeNode.Assign stmt) {
-        var varInfo = currentScope().Get(stmt.id);
-
-        if (varInfo.type == VarType.INT)
+        if (stmt.slot.type == VarType.INT)
         {
-            var newValue = new VariableInfo(VarType.INT, 0);
-            newValue.value = expr(stmt.exprRHS);
-            currentScope().Assign(stmt.id, newValue);
+            store(stmt.slot, expr(stmt.exprRHS));
         }
         else
         {
             // id = new
             if (stmt.exprRHS == null && stmt.idRHS == null)
             {
-                newHeapVar(stmt.id);
+                newHeapVar(stmt);
             }
             // id = ref id
             else if (stmt.exprRHS == null)
             {
-                var rhsVarInfo = currentScope().Get(stmt.idRHS);
-                var newValue = new VariableInfo(VarType.REF, rhsVarInfo.value);
-                currentScope().Assign(stmt.id, newValue);
+                store(stmt.slot, load(stmt.slotRHS));
             }
             // id = expr
             else
             {
-                if (varInfo.value == null)
+                if (load(stmt.slot) == NULL_REF)
                 {
-                    error("Can't assign a value to a null reference.");
+                    runtime.error(stmt.span, "Can't assign a value to a null reference.");
                 }
-                else setHeapVar(stmt.id, expr(stmt.exprRHS));
+                else setHeapVar(stmt.slot, expr(stmt.exprRHS), stmt.span);
             }
         }
     }
@@ -36,8 +36,9 @@ public class Frame<T> {
         this.parent = parent;
     }
 
-    public void pushScope() {
-        Scope<T> newScope = new Scope<>();
+    // Scope for a block declaring this many variables
+    public void pushScope(int declarations) {
+        Scope<T> newScope = new Scope<>(declarations);
         newScope.parent = currentScope;
         currentScope = newScope;
     }
@@ -0,0 +1,445 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+// Parser that does the work of the SemanticChecker and the Resolver while it builds the tree
+// (--front-end=fused), so the program comes out checked and resolved after one pass over the source.
+// Scopes and slots follow the same rules as in those two passes, a block gets its scope when its first
+// declaration is parsed.
+//
+// The errors have to be the same ones the separate passes report. A syntax error anywhere comes before
+// any semantic error, so semantic errors are only recorded while parsing and reported once the whole
+// program has parsed. Of those, the one the checker would have found first is reported. Every check is
+// numbered in the order the checker makes it, which is source order except that the checker looks at all
+// global declarations before any function body. A function body can also use a global declared after the
+// function, so a name a function body doesn't know yet is looked up again once all globals are declared.
+public class FusedParser extends Parser
+{
+    // Checks in function and main bodies are numbered after all checks of global declarations
+    static final long BODIES = 1L << 40;
+    // currentFunction in the main body
+    static final int MAIN = Integer.MAX_VALUE;
+
+    // What a use of a name is checked for. The error message is only built when there is an error.
+    static final int READ = 0;
+    static final int INPUT = 1;
+    static final int ASSIGN = 2;
+    static final int NEW = 3;
+    static final int STORE_REF = 4;
+    static final int REF_SOURCE = 5;
+    static final int ARG = 6;
+
+    // A name used in a function body before anything with that name was declared
+    static class Pending
+    {
+        String id;
+        int kind;
+        // Function being called for an ARG
+        String function;
+        ParseTreeNode.Slot slot;
+        long check;
+    }
+
+    Frame<ParseTreeNode.Slot> currentFrame;
+    Frame<ParseTreeNode.Slot> globalFrame;
+    Scope<ParseTreeNode.Slot> globalScope;
+    // Scope the current block started in, the block's own scope is pushed at its first declaration
+    Scope<ParseTreeNode.Slot> blockParent;
+    HashMap<String, ParseTreeNode.FuncDecl> functions;
+    // Index of every function in the program, a body can only call functions up to its own
+    IdentityHashMap<ParseTreeNode.FuncDecl, Integer> functionIndices;
+    int currentFunction = MAIN;
+    // Once the declarations end, a name that isn't declared is an error right away
+    boolean globalsDeclared;
+    List<Pending> pending;
+    List<ParseTreeNode.Slot> intGlobals;
+    int numRefGlobals;
+    // Slots of the current frame, handed out the same way as by the Resolver
+    int nextRef;
+    int nextInt;
+    int maxRefs;
+    int maxInts;
+    List<ParseTreeNode.Slot> intSlots;
+
+    long nextCheck;
+    String firstError;
+    long firstErrorCheck = Long.MAX_VALUE;
+
+    FusedParser(TokenSource scanner)
+    {
+        this(scanner, true);
+    }
+
+    // parse is false for a subclass that has to set up its own state before it calls program()
+    FusedParser(TokenSource scanner, boolean parse)
+    {
+        super(scanner, false);
+        globalFrame = new Frame<>();
+        currentFrame = globalFrame;
+        globalScope = globalFrame.currentScope;
+        functions = new HashMap<>();
+        functionIndices = new IdentityHashMap<>();
+        pending = new ArrayList<>();
+        intGlobals = new ArrayList<>();
+        if (parse)
+        {
+            root = program();
+        }
+    }
+
+    private void error(long check, String message)
+    {
+        if (check < firstErrorCheck)
+        {
+            firstError = message;
+            firstErrorCheck = check;
+        }
+    }
+
+    // Throws the first semantic error, if there was one
+    void reportError()
+    {
+        if (firstError != null)
+        {
+            throw new CoreError(firstError);
+        }
+    }
+
+    private long check()
+    {
+        return BODIES + nextCheck++;
+    }
+
+    private void pushFrame(List<String> params)
+    {
+        List<ParseTreeNode.Slot> paramSlots = new ArrayList<>();
+        for (int i = 0; i < params.size(); i++)
+        {
+            paramSlots.add(new ParseTreeNode.Slot(false, i, VarType.REF));
+        }
+        currentFrame = new Frame<>(globalScope, params, paramSlots, currentFrame);
+        nextRef = params.size();
+        nextInt = 0;
+        maxRefs = nextRef;
+        maxInts = 0;
+        intSlots = new ArrayList<>();
+    }
+
+    // Returns the size of the frame that was popped
+    private int popFrame()
+    {
+        for (var slot : intSlots)
+        {
+            slot.index += maxRefs;
+        }
+        currentFrame = currentFrame.parent;
+        return maxRefs + maxInts;
+    }
+
+    private Scope<ParseTreeNode.Slot> currentScope()
+    {
+        return currentFrame.currentScope;
+    }
+
+    @Override
+    ParseTreeNode.Program program()
+    {
+        var program = super.program();
+        // Only reached if the whole program parsed
+        reportError();
+        program.numGlobals = numRefGlobals + intGlobals.size();
+        program.numRefGlobals = numRefGlobals;
+        program.frameSize = popFrame();
+        return program;
+    }
+
+    @Override
+    ParseTreeNode.DeclSeq declSeq()
+    {
+        var decls = super.declSeq();
+        for (var slot : intGlobals)
+        {
+            slot.index += numRefGlobals;
+        }
+        for (var use : pending)
+        {
+            var global = globalScope.Get(use.id);
+            if (global != null)
+            {
+                use.slot.index = global.index;
+                use.slot.type = global.type;
+            }
+            check(global, use.check, use.id, use.kind, use.function);
+        }
+        globalsDeclared = true;
+
+        // The main body comes next, it gets its own frame like a function
+        pushFrame(new ArrayList<>());
+        return decls;
+    }
+
+    @Override
+    List<ParseTreeNode.Stmt> funcBody(ParseTreeNode.FuncDecl decl)
+    {
+        funcHeader(decl);
+        return body(decl, functionIndices.size() - 1);
+    }
+
+    // Checks the name and params of the function whose body comes next and makes it callable
+    void funcHeader(ParseTreeNode.FuncDecl decl)
+    {
+        long check = check();
+        if (functions.containsKey(decl.id))
+        {
+            error(check, "Function with name " + decl.id + " can't be declared twice.");
+        }
+        else
+        {
+            check = check();
+            for (int i = 0; i < decl.params.size() - 1; i++)
+            {
+                for (int j = i + 1; j < decl.params.size(); j++)
+                {
+                    if (decl.params.get(i).equals(decl.params.get(j)))
+                    {
+                        error(check, "Function with name " + decl.id + " has duplicate parameters.");
+                    }
+                }
+            }
+            // Registered before the body so recursive calls resolve
+            functions.put(decl.id, decl);
+        }
+        functionIndices.put(decl, functionIndices.size());
+    }
+
+    // Parses the body of the function with the given index in the program, in its own frame
+    List<ParseTreeNode.Stmt> body(ParseTreeNode.FuncDecl decl, int index)
+    {
+        currentFunction = index;
+        pushFrame(decl.params);
+        var body = super.funcBody(decl);
+        decl.frameSize = popFrame();
+        currentFunction = MAIN;
+        return body;
+    }
+
+    @Override
+    List<ParseTreeNode.Stmt> stmtSeq()
+    {
+        var outerBlockParent = blockParent;
+        int blockRefs = nextRef;
+        int blockInts = nextInt;
+        blockParent = currentScope();
+        var stmts = super.stmtSeq();
+        if (currentScope() != blockParent)
+        {
+            currentFrame.popScope();
+        }
+        blockParent = outerBlockParent;
+        nextRef = blockRefs;
+        nextInt = blockInts;
+        return stmts;
+    }
+
+    @Override
+    ParseTreeNode.VarDecl decl()
+    {
+        var decl = super.decl();
+        boolean global = currentFrame == globalFrame;
+        if (!global && currentScope() == blockParent)
+        {
+            currentFrame.pushScope(decl.ids.size());
+        }
+
+        decl.slots = new ParseTreeNode.Slot[decl.ids.size()];
+        for (int i = 0; i < decl.ids.size(); i++)
+        {
+            String id = decl.ids.get(i);
+            // Global declarations are all checked before any body
+            long check = global ? nextCheck++ : check();
+            if (currentScope().Contains(id))
+            {
+                error(check, "Variable with name " + id + " can't be declared twice.");
+            }
+
+            ParseTreeNode.Slot slot;
+            if (global && decl.type == VarType.REF)
+            {
+                slot = new ParseTreeNode.Slot(true, numRefGlobals++, decl.type);
+            }
+            else if (global)
+            {
+                slot = new ParseTreeNode.Slot(true, intGlobals.size(), decl.type);
+                intGlobals.add(slot);
+            }
+            else if (decl.type == VarType.REF)
+            {
+                slot = new ParseTreeNode.Slot(false, nextRef++, decl.type);
+            }
+            else
+            {
+                slot = new ParseTreeNode.Slot(false, nextInt++, decl.type);
+                intSlots.add(slot);
+            }
+            decl.slots[i] = slot;
+            currentScope().Declare(id, slot);
+        }
+        maxRefs = Math.max(maxRefs, nextRef);
+        maxInts = Math.max(maxInts, nextInt);
+        return decl;
+    }
+
+    @Override
+    ParseTreeNode.Stmt stmt()
+    {
+        // Declarations were handled by decl(), conditions and bodies of if and while as they were parsed
+        var stmt = super.stmt();
+        if (stmt instanceof ParseTreeNode.Assign)
+        {
+            assign((ParseTreeNode.Assign)stmt);
+        }
+        else if (stmt instanceof ParseTreeNode.Input)
+        {
+            var input = (ParseTreeNode.Input)stmt;
+            input.slot = use(input.id, INPUT, null);
+        }
+        else if (stmt instanceof ParseTreeNode.Output)
+        {
+            expression(((ParseTreeNode.Output)stmt).expr);
+        }
+        else if (stmt instanceof ParseTreeNode.FuncCall)
+        {
+            funcCall((ParseTreeNode.FuncCall)stmt);
+        }
+        return stmt;
+    }
+
+    @Override
+    ParseTreeNode.Cond statementCondition()
+    {
+        var cond = super.statementCondition();
+        condition(cond);
+        return cond;
+    }
+
+    // Looks up a name for a check. A name a function body doesn't know may be a global declared later,
+    // it gets a slot that is filled in and checked once all globals are declared.
+    private ParseTreeNode.Slot use(String id, int kind, String function)
+    {
+        long check = check();
+        var slot = currentScope().Get(id);
+        if (slot == null && !globalsDeclared)
+        {
+            var use = new Pending();
+            use.id = id;
+            use.kind = kind;
+            use.function = function;
+            use.slot = new ParseTreeNode.Slot(true, 0, null);
+            use.check = check;
+            pending.add(use);
+            return use.slot;
+        }
+        check(slot, check, id, kind, function);
+        return slot;
+    }
+
+    private void check(ParseTreeNode.Slot slot, long check, String id, int kind, String function)
+    {
+        boolean needsRef = kind >= NEW;
+        if (slot == null || needsRef && slot.type != VarType.REF)
+        {
+            error(check, message(slot == null, id, kind, function));
+        }
+    }
+
+    // The SemanticChecker's message for a failed check
+    private static String message(boolean undeclared, String id, int kind, String function)
+    {
+        if (kind == READ) return "Attempting to use undeclared variable '" + id + "'.";
+        else if (kind == INPUT) return "Attempting to get input into undeclared variable '" + id + "'.";
+        else if (undeclared && kind != REF_SOURCE && kind != ARG) return "Attempting to assign to undeclared variable '" + id + "'.";
+        else if (kind == NEW) return "Attempting to new an int variable '" + id + "'.";
+        else if (kind == STORE_REF) return "Attempting to store a reference in int variable '" + id + "'.";
+        else if (kind == REF_SOURCE) return "Attemping to store a reference to an int or undeclared variable '" + id + "'.";
+        else return "Attempting to pass an int or undeclared variable '" + id + "' to function '" + function + "'.";
+    }
+
+    private void funcCall(ParseTreeNode.FuncCall stmt)
+    {
+        long check = check();
+        var func = functions.get(stmt.id);
+        if (func != null && functionIndices.get(func) > currentFunction)
+        {
+            func = null;
+        }
+        if (func == null)
+        {
+            error(check, "Attempting to call undeclared function '" + stmt.id + "'.");
+        }
+        else if (func.params.size() != stmt.params.size())
+        {
+            error(check, "Function '" + stmt.id + "' expects " + func.params.size() + " parameters.");
+        }
+        stmt.func = func;
+        stmt.liveRefs = nextRef;
+        stmt.args = new ParseTreeNode.Slot[stmt.params.size()];
+        for (int i = 0; i < stmt.params.size(); i++)
+        {
+            stmt.args[i] = use(stmt.params.get(i), ARG, stmt.id);
+        }
+    }
+
+    private void assign(ParseTreeNode.Assign stmt)
+    {
+        // id = new
+        if (stmt.exprRHS == null && stmt.idRHS == null)
+        {
+            stmt.slot = use(stmt.id, NEW, null);
+            stmt.liveRefs = nextRef;
+        }
+        // id = ref id
+        else if (stmt.exprRHS == null)
+        {
+            stmt.slot = use(stmt.id, STORE_REF, null);
+            stmt.slotRHS = use(stmt.idRHS, REF_SOURCE, null);
+        }
+        // id = expr
+        else
+        {
+            stmt.slot = use(stmt.id, ASSIGN, null);
+            expression(stmt.exprRHS);
+        }
+    }
+
+    private void condition(ParseTreeNode.Cond condition)
+    {
+        if (condition.cmpr != null)
+        {
+            expression(condition.cmpr.lhs);
+            expression(condition.cmpr.rhs);
+        }
+        if (condition.cond != null)
+        {
+            condition(condition.cond);
+        }
+    }
+
+    private void expression(ParseTreeNode.Expr expr)
+    {
+        for (var term : expr.terms)
+        {
+            for (var factor : term.factors)
+            {
+                if (factor.expr != null)
+                {
+                    expression(factor.expr);
+                }
+                else if (factor.id != null)
+                {
+                    factor.slot = use(factor.id, READ, null);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,295 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Random;
+
+// Writes a random Core program that passes the SemanticChecker and runs to completion without a
+// runtime error, plus a .data file with exactly as many values as the program reads.
+// Usage: java Generator [--seed=N] [--size=N] [--depth=N] [--loop=N] [--functions=N] [--call-depth=N]
+//            [--churn=P] name
+// writes name.code and name.data.
+//
+//   size        statements at the top level of main and of each function, nested blocks get fewer
+//   depth       how deep if and while statements nest
+//   loop        iterations of each while loop
+//   functions   number of functions
+//   call-depth  how deep a function recurses when main calls it
+//   churn       chance (0-1) that a statement allocates a heap cell
+//
+// Termination and safety come from the shape of the program rather than from running it: every while
+// loop counts a counter that nothing else assigns up to loop, a function only calls itself (on its first
+// param, a fuel counter) or makes one call to a function declared before it, every ref is given a cell as soon as it is
+// declared, and input statements only appear at the top level of main.
+class Generator {
+	Random random;
+	int size = 20;
+	int depth = 3;
+	int loop = 10;
+	int functions = 3;
+	int callDepth = 10;
+	double churn = 0.1;
+
+	StringBuilder code = new StringBuilder();
+	int inputs;
+	int nextName;
+	// Variables in scope that statements may assign to, and the ones they may only read
+	ArrayList<String> ints = new ArrayList<>();
+	ArrayList<String> refs = new ArrayList<>();
+	ArrayList<String> readOnly = new ArrayList<>();
+	// Params of the functions declared so far, not counting the fuel param
+	ArrayList<Integer> params = new ArrayList<>();
+	// Index of the function being generated, -1 in main
+	int currentFunction = -1;
+	// A function body makes at most one call, otherwise the work of a call chain multiplies with every level
+	boolean bodyHasCall;
+
+	public static void main(String[] args) throws IOException {
+		Generator generator = new Generator();
+		long seed = 1;
+		int argIndex = 0;
+		while (argIndex < args.length && args[argIndex].startsWith("--")) {
+			String option = args[argIndex++];
+			String value = option.substring(option.indexOf('=') + 1);
+			if (option.startsWith("--seed=")) {
+				seed = Long.parseLong(value);
+			} else if (option.startsWith("--size=")) {
+				generator.size = Integer.parseInt(value);
+			} else if (option.startsWith("--depth=")) {
+				generator.depth = Integer.parseInt(value);
+			} else if (option.startsWith("--loop=")) {
+				generator.loop = Integer.parseInt(value);
+			} else if (option.startsWith("--functions=")) {
+				generator.functions = Integer.parseInt(value);
+			} else if (option.startsWith("--call-depth=")) {
+				generator.callDepth = Integer.parseInt(value);
+			} else if (option.startsWith("--churn=")) {
+				generator.churn = Double.parseDouble(value);
+			} else {
+				System.out.println("Unknown option '" + option + "'.");
+				System.exit(1);
+			}
+		}
+		generator.random = new Random(seed);
+		generator.program();
+
+		try (var out = new PrintStream(args[argIndex] + ".code")) {
+			out.print(generator.code);
+		}
+		try (var out = new PrintStream(args[argIndex] + ".data")) {
+			for (int i = 0; i < generator.inputs; i++) {
+				out.print((i == 0 ? "" : " ") + generator.random.nextInt(1024));
+			}
+			out.println();
+		}
+	}
+
+	String name(String prefix) {
+		return prefix + nextName++;
+	}
+
+	void line(int indent, String text) {
+		code.append("\t".repeat(indent)).append(text).append('\n');
+	}
+
+	void program() {
+		line(0, "program");
+		int numInts = 2 + random.nextInt(4);
+		int numRefs = 1 + random.nextInt(3);
+		for (int i = 0; i < numInts; i++) {
+			String id = name("g");
+			line(1, "int " + id + ";");
+			ints.add(id);
+		}
+		for (int i = 0; i < numRefs; i++) {
+			String id = name("h");
+			line(1, "ref " + id + ";");
+			refs.add(id);
+		}
+		for (int i = 0; i < functions; i++) {
+			function(i);
+		}
+
+		line(0, "begin");
+		// Global refs get their cells before anything can read them
+		for (int i = 0; i < numRefs; i++) {
+			line(1, refs.get(i) + " = new;");
+			line(1, refs.get(i) + " = " + random.nextInt(1024) + ";");
+		}
+		block(1, depth, size, true);
+		for (int i = 0; i < numInts + numRefs; i++) {
+			line(1, "output " + (i < numInts ? ints.get(i) : refs.get(i - numInts)) + ";");
+		}
+		line(0, "end");
+	}
+
+	void function(int index) {
+		String id = "F" + index;
+		String fuel = name("n");
+		int numParams = random.nextInt(3);
+		ArrayList<String> paramNames = new ArrayList<>();
+		for (int i = 0; i < numParams; i++) {
+			paramNames.add(name("p"));
+		}
+
+		currentFunction = index;
+		bodyHasCall = false;
+		line(1, id + "(ref " + fuel + (numParams > 0 ? ", " + String.join(", ", paramNames) : "") + ") begin");
+		// Only globals and params are visible in a function body
+		int globalInts = ints.size();
+		int globalRefs = refs.size();
+		readOnly.add(fuel);
+		refs.addAll(paramNames);
+
+		block(2, depth, size, false);
+		// Recursion stops when the fuel runs out
+		line(2, "if 0 < " + fuel + " then");
+		line(3, fuel + " = " + fuel + " - 1;");
+		line(3, "begin " + id + "(" + fuel + (numParams > 0 ? ", " + String.join(", ", paramNames) : "") + ");");
+		line(2, "endif");
+		line(1, "endfunc");
+
+		ints.subList(globalInts, ints.size()).clear();
+		refs.subList(globalRefs, refs.size()).clear();
+		readOnly.clear();
+		params.add(numParams);
+		currentFunction = -1;
+	}
+
+	// Statements of one block, variables declared in it go out of scope at the end
+	void block(int indent, int depth, int count, boolean topOfMain) {
+		int numInts = ints.size();
+		int numRefs = refs.size();
+		int numReadOnly = readOnly.size();
+		for (int i = 0; i < count; i++) {
+			stmt(indent, depth, topOfMain);
+		}
+		ints.subList(numInts, ints.size()).clear();
+		refs.subList(numRefs, refs.size()).clear();
+		readOnly.subList(numReadOnly, readOnly.size()).clear();
+	}
+
+	void stmt(int indent, int depth, boolean topOfMain) {
+		if (random.nextDouble() < churn) {
+			heapStmt(indent);
+			return;
+		}
+		int choice = random.nextInt(topOfMain ? 11 : 10);
+		if (choice < 4) {
+			String target = pick(random.nextInt(3) == 0 ? refs : ints);
+			line(indent, target + " = " + expr(2) + ";");
+		} else if (choice == 4) {
+			String id = name("v");
+			line(indent, "int " + id + ";");
+			line(indent, id + " = " + expr(2) + ";");
+			ints.add(id);
+		} else if (choice == 5 && depth > 0) {
+			line(indent, "if " + cond(1) + " then");
+			block(indent + 1, depth - 1, nestedSize(), false);
+			if (random.nextBoolean()) {
+				line(indent, "else");
+				block(indent + 1, depth - 1, nestedSize(), false);
+			}
+			line(indent, "endif");
+		} else if (choice == 6 && depth > 0) {
+			String counter = name("c");
+			line(indent, "int " + counter + ";");
+			line(indent, counter + " = 0;");
+			line(indent, "while " + counter + " < " + loop + " begin");
+			readOnly.add(counter);
+			block(indent + 1, depth - 1, nestedSize(), false);
+			line(indent + 1, counter + " = " + counter + " + 1;");
+			line(indent, "endwhile");
+		} else if (choice == 7 && random.nextInt(4) == 0) {
+			line(indent, "output " + expr(2) + ";");
+		} else if (choice == 8 && callable() > 0) {
+			call(indent);
+		} else if (choice == 10) {
+			inputs++;
+			line(indent, "input " + pick(random.nextInt(3) == 0 ? refs : ints) + ";");
+		} else {
+			String target = pick(ints);
+			line(indent, target + " = " + target + " + " + expr(1) + ";");
+		}
+	}
+
+	void heapStmt(int indent) {
+		if (refs.size() > 1 && random.nextBoolean()) {
+			String target = pick(refs);
+			String source = pick(refs);
+			if (!target.equals(source)) {
+				line(indent, target + " = ref " + source + ";");
+				return;
+			}
+		}
+		String id = name("r");
+		line(indent, "ref " + id + ";");
+		line(indent, id + " = new;");
+		line(indent, id + " = " + expr(2) + ";");
+		refs.add(id);
+	}
+
+	// Calls a function with a fresh fuel counter. Inside a function only earlier functions can be
+	// called, and without fuel, so every call chain ends.
+	void call(int indent) {
+		int callee = random.nextInt(callable());
+		bodyHasCall = currentFunction >= 0;
+		String fuel = name("r");
+		line(indent, "ref " + fuel + ";");
+		line(indent, fuel + " = new;");
+		line(indent, fuel + " = " + (currentFunction < 0 ? random.nextInt(callDepth + 1) : 0) + ";");
+		StringBuilder args = new StringBuilder(fuel);
+		for (int i = 0; i < params.get(callee); i++) {
+			args.append(", ").append(pick(refs));
+		}
+		line(indent, "begin F" + callee + "(" + args + ");");
+	}
+
+	// Number of functions the current body may call, main can call all of them
+	int callable() {
+		if (currentFunction < 0) return functions;
+		return bodyHasCall ? 0 : currentFunction;
+	}
+
+	// Nested blocks get up to a quarter of size statements, but no more than 8
+	int nestedSize() {
+		return 1 + random.nextInt(Math.max(1, Math.min(size / 4, 8)));
+	}
+
+	String pick(ArrayList<String> names) {
+		return names.get(random.nextInt(names.size()));
+	}
+
+	String expr(int depth) {
+		String term = term(depth);
+		int operator = random.nextInt(4);
+		if (operator == 0) return term + " + " + expr(depth);
+		if (operator == 1) return term + " - " + expr(depth);
+		return term;
+	}
+
+	String term(int depth) {
+		String factor = factor(depth);
+		if (random.nextInt(4) == 0) return factor + " * " + term(depth);
+		return factor;
+	}
+
+	String factor(int depth) {
+		int choice = random.nextInt(depth > 0 ? 4 : 3);
+		if (choice == 0) return Integer.toString(random.nextInt(1024));
+		if (choice == 3) return "(" + expr(depth - 1) + ")";
+		int numReadable = ints.size() + refs.size() + readOnly.size();
+		int index = random.nextInt(numReadable);
+		if (index < ints.size()) return ints.get(index);
+		index -= ints.size();
+		if (index < refs.size()) return refs.get(index);
+		return readOnly.get(index - refs.size());
+	}
+
+	String cond(int depth) {
+		String cmpr = expr(1) + (random.nextBoolean() ? " < " : random.nextBoolean() ? " <= " : " == ") + expr(1);
+		int choice = random.nextInt(depth > 0 ? 4 : 2);
+		if (choice == 2) return "!(" + cond(depth - 1) + ")";
+		if (choice == 3) return cmpr + " or " + cond(depth - 1);
+		return cmpr;
+	}
+}
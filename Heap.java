@@ -0,0 +1,192 @@
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.BitSet;
+
+// Heap memory for ref variables. A ref value is the index of its cell. Cells that no ref variable
+// can reach anymore are found by a mark and sweep collection and put on a free list for reuse.
+// Heap cells only hold ints, so marking never has to look inside a cell: the live cells are
+// exactly the ones pointed at by the roots, which the runtime and the running engine supply.
+//
+// Cells are a plain int[] that doubles when it runs out of room, up to an optional hard limit.
+// OffHeap keeps them outside the Java heap instead by overriding the cell access methods, and its
+// allocated and marked bits too by overriding the ones that keep track of free cells.
+public class Heap {
+    interface Roots
+    {
+        // Calls heap.mark for every ref value that is still in scope
+        void markRoots(Heap heap);
+    }
+
+    static final int DEFAULT_THRESHOLD = 1 << 16;
+
+    static final int INITIAL_CAPACITY = 16;
+
+    int[] cells;
+    // Number of cells handed out so far, cells past this have never been used
+    int size;
+    // Largest number of cells the heap may hold, 0 means no limit
+    int limit;
+    BitSet allocated;
+    BitSet marked;
+    int[] freeList;
+    int freeCount;
+    Roots roots;
+    // A collection runs when no free cell is left and the heap has at least this many cells. After
+    // each collection the threshold doubles if more than half of it is still live. 0 turns collection off.
+    int threshold;
+    // When set, the number of reachable cells is printed here after every collection
+    OutputSink statsOut;
+
+    // Stats for monitoring: total allocations, cells allocated right now and the most there ever were,
+    // and how often the cell array had to grow
+    long allocations;
+    int liveCells;
+    int peakCells;
+    int resizes;
+
+    Heap(int threshold)
+    {
+        cells = new int[INITIAL_CAPACITY];
+        allocated = new BitSet();
+        marked = new BitSet();
+        freeList = new int[16];
+        this.threshold = threshold;
+    }
+
+    // Returns the ref value of a fresh cell, or NULL_REF if the heap is at its limit and nothing can be freed
+    int allocate()
+    {
+        if (freeCount == 0 && roots != null && threshold > 0 && (size >= threshold || limit > 0 && size == limit))
+        {
+            collect();
+        }
+
+        int ref;
+        if (freeCount > 0)
+        {
+            ref = takeFree();
+            freeCount--;
+            set(ref, 0);
+        }
+        else if (limit > 0 && size == limit)
+        {
+            return CoreRuntime.NULL_REF;
+        }
+        else
+        {
+            if (size == capacity())
+            {
+                grow();
+            }
+            ref = size++;
+        }
+        setAllocated(ref);
+        allocations++;
+        liveCells++;
+        peakCells = Math.max(peakCells, liveCells);
+        return ref;
+    }
+
+    private void grow()
+    {
+        int capacity = capacity() * 2;
+        if (limit > 0 && capacity > limit)
+        {
+            capacity = limit;
+        }
+        resize(capacity);
+        resizes++;
+    }
+
+    int capacity()
+    {
+        return cells.length;
+    }
+
+    // Grows the cells to the given capacity, keeping their values
+    void resize(int capacity)
+    {
+        cells = Arrays.copyOf(cells, capacity);
+    }
+
+    int get(int ref)
+    {
+        return cells[ref];
+    }
+
+    void set(int ref, int value)
+    {
+        cells[ref] = value;
+    }
+
+    void mark(int ref)
+    {
+        if (ref != CoreRuntime.NULL_REF)
+        {
+            marked.set(ref);
+        }
+    }
+
+    // A free cell, there is at least one
+    int takeFree()
+    {
+        return freeList[freeCount - 1];
+    }
+
+    void setAllocated(int ref)
+    {
+        allocated.set(ref);
+    }
+
+    void clearMarks()
+    {
+        marked.clear();
+    }
+
+    // Frees the allocated cells that aren't marked, adds them to freeCount and returns the number still live
+    int sweep()
+    {
+        int live = 0;
+        for (int ref = allocated.nextSetBit(0); ref >= 0; ref = allocated.nextSetBit(ref + 1))
+        {
+            if (marked.get(ref))
+            {
+                live++;
+            }
+            else
+            {
+                allocated.clear(ref);
+                if (freeCount == freeList.length)
+                {
+                    freeList = Arrays.copyOf(freeList, freeCount * 2);
+                }
+                freeList[freeCount++] = ref;
+            }
+        }
+        return live;
+    }
+
+    void collect()
+    {
+        clearMarks();
+        roots.markRoots(this);
+
+        int live = sweep();
+        liveCells = live;
+        if (live > threshold / 2)
+        {
+            // Saturates at the limit, or at the largest int without one, so it never wraps to negative
+            threshold = (int)Math.min((long)threshold * 2, limit > 0 ? limit : Integer.MAX_VALUE);
+        }
+        if (statsOut != null)
+        {
+            statsOut.println("gc: " + live + " reachable");
+        }
+    }
+
+    void printStats(PrintStream out)
+    {
+        out.println("heap: " + allocations + " allocations, " + peakCells + " peak cells, "
+            + capacity() + " capacity, " + resizes + " resizes");
+    }
+}
@@ -0,0 +1,121 @@
+import java.io.FileInputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+
+// Reads the whitespace separated integers of a .data file for input statements. The file is read
+// through a fixed size buffer as values are asked for, so it is never held in memory as a whole and
+// can be a pipe or stdin ("-"), with the values streamed in by another process while the program runs.
+// Unlike the Scanner, values aren't limited to 0-1023: any int, optionally negative, is accepted.
+public class InputReader {
+    static final int BUFFER_SIZE = 1 << 16;
+
+    ReadableByteChannel channel;
+    ByteBuffer buffer;
+    byte[] bytes;
+    boolean endOfInput;
+
+    InputReader(String filename) throws IOException
+    {
+        this(filename.equals("-") ? new FileInputStream(FileDescriptor.in).getChannel() : FileChannel.open(Path.of(filename)));
+    }
+
+    // Reads the values from a channel that is already open, the Daemon passes a job's socket
+    InputReader(ReadableByteChannel channel)
+    {
+        this.channel = channel;
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        bytes = buffer.array();
+        buffer.flip();
+    }
+
+    // Next byte without consuming it, -1 at the end of the input
+    private int peek()
+    {
+        if (!buffer.hasRemaining() && !fill())
+        {
+            return -1;
+        }
+        return bytes[buffer.position()] & 0xFF;
+    }
+
+    private boolean fill()
+    {
+        if (endOfInput)
+        {
+            return false;
+        }
+        buffer.clear();
+        try
+        {
+            int read;
+            // A non-blocking channel could return 0, keep reading until there is data or the end
+            do
+            {
+                read = channel.read(buffer);
+            } while (read == 0);
+            endOfInput = read < 0;
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        buffer.flip();
+        return buffer.hasRemaining();
+    }
+
+    private static boolean isWhitespace(int c)
+    {
+        return c == ' ' || (c >= '\t' && c <= '\r');
+    }
+
+    // Skips whitespace and returns whether another value follows. Blocks on a pipe until it knows.
+    boolean hasNext()
+    {
+        int c = peek();
+        while (isWhitespace(c))
+        {
+            buffer.position(buffer.position() + 1);
+            c = peek();
+        }
+        return c != -1;
+    }
+
+    // Reads the next value, hasNext must have returned true
+    int next()
+    {
+        boolean negative = peek() == '-';
+        if (negative)
+        {
+            buffer.position(buffer.position() + 1);
+        }
+        long value = 0;
+        int digits = 0;
+        int c = peek();
+        while (c >= '0' && c <= '9')
+        {
+            value = value * 10 + (c - '0');
+            if (value > (long)Integer.MAX_VALUE + 1)
+            {
+                throw new NumberFormatException("Input value out of range in data file");
+            }
+            digits++;
+            buffer.position(buffer.position() + 1);
+            c = peek();
+        }
+        if (digits == 0 || (c != -1 && !isWhitespace(c)))
+        {
+            throw new NumberFormatException("Invalid input value in data file");
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE)
+        {
+            throw new NumberFormatException("Input value out of range in data file");
+        }
+        return (int)value;
+    }
+}
@@ -0,0 +1,540 @@
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URI;
+import java.util.IdentityHashMap;
+import java.util.List;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+// Backend that turns a checked and resolved program into a JVM class so the JIT compiles the Core
+// program itself instead of an interpreter. Locals become Java locals, functions become static
+// methods and if/while become native branches. Heap, input, output and errors still go through
+// CoreRuntime, so behaviour matches the other engines exactly. Refs held in Java locals are invisible
+// to the heap's garbage collector, so the heap never collects on this engine.
+//
+// The class is produced by translating to Java source and compiling it in memory with the JDK's
+// compiler, then loaded as a hidden class next to this one. The JVM limits a method to 64K of
+// bytecode. When javac says a method is over that, the program is written again with every body
+// whose source is longer than METHOD_SIZE keeping its locals in an int[], and every statement
+// sequence in it that is still too long moved to helper methods that take the array. Core has no
+// break or return, so any run of statements can be moved out like that. Array locals are slower
+// than Java locals, so programs that compile as they are don't get split.
+public class JvmCompiler {
+    static final String CLASS_NAME = "CoreProgram";
+    // Longest run of terms or factors written without extra parentheses
+    static final int CHAIN = 64;
+    // Characters of Java source per method, well below what compiles to 64K of bytecode
+    static final int METHOD_SIZE = 20000;
+
+    StringBuilder source;
+    // Helper methods of the bodies that were split
+    StringBuilder helpers;
+    // Bodies longer than METHOD_SIZE are split
+    boolean split;
+    // Locals are l[i] instead of li in the method being written
+    boolean arrayLocals;
+    int helperCount;
+    IdentityHashMap<ParseTreeNode.FuncDecl, String> functionNames;
+    MethodHandle entryPoint;
+
+    JvmCompiler(ParseTreeNode.Program p)
+    {
+        byte[] classBytes = compile(program(p, false));
+        if (classBytes == null)
+        {
+            classBytes = compile(program(p, true));
+        }
+        if (classBytes == null)
+        {
+            error("Failed to compile the program to a JVM class: a statement is too large for one JVM method.");
+        }
+        entryPoint = load(classBytes);
+    }
+
+    void run(CoreRuntime runtime)
+    {
+        try
+        {
+            entryPoint.invokeExact(runtime);
+        }
+        catch (RuntimeException | Error e)
+        {
+            throw e;
+        }
+        catch (Throwable t)
+        {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private static void error(String message)
+    {
+        throw new CoreError(message);
+    }
+
+    // The class, or null if a method is over the JVM's size limit
+    private byte[] compile(String javaSource)
+    {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null)
+        {
+            error("The jvm engine needs a JDK, no Java compiler is available.");
+        }
+
+        var sourceFile = new SimpleJavaFileObject(URI.create("string:///" + CLASS_NAME + ".java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors)
+            {
+                return javaSource;
+            }
+        };
+        var classBytes = new ByteArrayOutputStream();
+        JavaFileManager fileManager = new ForwardingJavaFileManager<JavaFileManager>(compiler.getStandardFileManager(null, null, null)) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling)
+            {
+                return new SimpleJavaFileObject(URI.create("bytes:///" + className + ".class"), kind) {
+                    @Override
+                    public OutputStream openOutputStream()
+                    {
+                        return classBytes;
+                    }
+                };
+            }
+        };
+
+        var options = List.of("-classpath", System.getProperty("java.class.path"), "-g:none");
+        var diagnostics = new DiagnosticCollector<JavaFileObject>();
+        boolean compiled = compiler.getTask(null, fileManager, diagnostics, options, null, List.of(sourceFile)).call();
+        if (!compiled)
+        {
+            for (var diagnostic : diagnostics.getDiagnostics())
+            {
+                if (diagnostic.getCode().equals("compiler.err.limit.code"))
+                {
+                    return null;
+                }
+            }
+            error("Failed to compile the program to a JVM class: " + diagnostics.getDiagnostics().get(0).getMessage(null));
+        }
+        return classBytes.toByteArray();
+    }
+
+    private MethodHandle load(byte[] classBytes)
+    {
+        try
+        {
+            var lookup = MethodHandles.lookup().defineHiddenClass(classBytes, true);
+            return lookup.findStatic(lookup.lookupClass(), "run", MethodType.methodType(void.class, CoreRuntime.class));
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    String program(ParseTreeNode.Program p, boolean split)
+    {
+        this.split = split;
+        source = new StringBuilder();
+        helpers = new StringBuilder();
+        helperCount = 0;
+        functionNames = new IdentityHashMap<>();
+        var functions = p.declSeq.funcDeclSeq;
+        for (int i = 0; i < functions.size(); i++)
+        {
+            functionNames.put(functions.get(i), "f" + i);
+        }
+
+        source.append("final class ").append(CLASS_NAME).append(" {\n");
+        source.append("    static CoreRuntime rt;\n");
+        source.append("    static int[] g;\n");
+        source.append("    static int depth;\n");
+        source.append("    static void run(CoreRuntime runtime) {\n");
+        source.append("        rt = runtime;\n");
+        source.append("        g = runtime.globals;\n");
+        source.append("        depth = 0;\n");
+        source.append("        main();\n");
+        source.append("    }\n");
+
+        for (var decl : functions)
+        {
+            method(functionNames.get(decl), decl.params.size(), decl.frameSize, decl.body);
+        }
+        method("main", 0, p.frameSize, p.stmtSeq);
+        source.append(helpers);
+        source.append("}\n");
+        return source.toString();
+    }
+
+    private void method(String name, int numParams, int frameSize, List<ParseTreeNode.Stmt> body)
+    {
+        StringBuilder outer = source;
+        source = new StringBuilder();
+        arrayLocals = false;
+        stmtSeq(body, 2);
+        if (split && source.length() > METHOD_SIZE)
+        {
+            source = new StringBuilder();
+            arrayLocals = true;
+            stmtSeq(body, 2);
+        }
+        String code = source.toString();
+        source = outer;
+
+        source.append("    static void ").append(name).append("(");
+        for (int i = 0; i < numParams; i++)
+        {
+            source.append(i == 0 ? "" : ", ").append(arrayLocals ? "int p" : "int l").append(i);
+        }
+        source.append(") {\n");
+        if (arrayLocals)
+        {
+            source.append("        int[] l = new int[").append(frameSize).append("];\n");
+            for (int i = 0; i < numParams; i++)
+            {
+                source.append("        l[").append(i).append("] = p").append(i).append(";\n");
+            }
+        }
+        else
+        {
+            // Block locals share slots, so they are all declared once at the top of the method
+            for (int i = numParams; i < frameSize; i++)
+            {
+                source.append("        int l").append(i).append(" = 0;\n");
+            }
+        }
+        source.append(code);
+        source.append("    }\n");
+    }
+
+    private void indent(int depth)
+    {
+        for (int i = 0; i < depth; i++)
+        {
+            source.append("    ");
+        }
+    }
+
+    void stmtSeq(List<ParseTreeNode.Stmt> stmts, int depth)
+    {
+        if (!arrayLocals)
+        {
+            for (var s : stmts)
+            {
+                stmt(s, depth);
+            }
+            return;
+        }
+
+        // Each statement is written on its own first, nested sequences that are too long have already
+        // become helper calls by then
+        StringBuilder outer = source;
+        var parts = new String[stmts.size()];
+        int total = 0;
+        for (int i = 0; i < parts.length; i++)
+        {
+            source = new StringBuilder();
+            stmt(stmts.get(i), depth);
+            parts[i] = source.toString();
+            total += parts[i].length();
+        }
+        source = outer;
+        if (total <= METHOD_SIZE)
+        {
+            for (String part : parts)
+            {
+                source.append(part);
+            }
+            return;
+        }
+
+        // Consecutive statements go to one helper until it is full
+        for (int i = 0; i < parts.length;)
+        {
+            String helper = "h" + helperCount++;
+            helpers.append("    static void ").append(helper).append("(int[] l) {\n");
+            int size = 0;
+            do
+            {
+                helpers.append(parts[i]);
+                size += parts[i++].length();
+            }
+            while (i < parts.length && size + parts[i].length() <= METHOD_SIZE);
+            helpers.append("    }\n");
+            indent(depth);
+            source.append(helper).append("(l);\n");
+        }
+    }
+
+    void stmt(ParseTreeNode.Stmt stmt, int depth)
+    {
+        indent(depth);
+        if (stmt instanceof ParseTreeNode.Assign)
+        {
+            assign((ParseTreeNode.Assign)stmt);
+        }
+        else if (stmt instanceof ParseTreeNode.If)
+        {
+            ifStmt((ParseTreeNode.If)stmt, depth);
+        }
+        else if (stmt instanceof ParseTreeNode.Loop)
+        {
+            loop((ParseTreeNode.Loop)stmt, depth);
+        }
+        else if (stmt instanceof ParseTreeNode.Input)
+        {
+            input((ParseTreeNode.Input)stmt);
+        }
+        else if (stmt instanceof ParseTreeNode.Output)
+        {
+            source.append("rt.output(");
+            expr(((ParseTreeNode.Output)stmt).expr);
+            source.append(");\n");
+        }
+        else if (stmt instanceof ParseTreeNode.VarDecl)
+        {
+            decl((ParseTreeNode.VarDecl)stmt);
+        }
+        else if (stmt instanceof ParseTreeNode.FuncCall)
+        {
+            funcCall((ParseTreeNode.FuncCall)stmt);
+        }
+    }
+
+    private void decl(ParseTreeNode.VarDecl decl)
+    {
+        for (var slot : decl.slots)
+        {
+            slot(slot);
+            source.append(decl.type == VarType.INT ? " = 0; " : " = " + CoreRuntime.NULL_REF + "; ");
+        }
+        source.append("\n");
+    }
+
+    private void funcCall(ParseTreeNode.FuncCall stmt)
+    {
+        source.append("if (++depth > rt.maxDepth) rt.callDepthExceeded(").append(stmt.span).append("L); ");
+        source.append(functionNames.get(stmt.func)).append("(");
+        for (int i = 0; i < stmt.args.length; i++)
+        {
+            source.append(i == 0 ? "" : ", ");
+            slot(stmt.args[i]);
+        }
+        source.append("); depth--;\n");
+    }
+
+    private void input(ParseTreeNode.Input stmt)
+    {
+        if (stmt.slot.type == VarType.INT)
+        {
+            slot(stmt.slot);
+            source.append(" = rt.input(").append(stmt.span).append("L);\n");
+        }
+        else
+        {
+            source.append("rt.heapStore(");
+            slot(stmt.slot);
+            source.append(", rt.input(").append(stmt.span).append("L), ").append(stmt.span).append("L);\n");
+        }
+    }
+
+    private void loop(ParseTreeNode.Loop stmt, int depth)
+    {
+        // Tested with an if so javac doesn't reject a constant condition as an unreachable loop
+        source.append("while (true) {\n");
+        indent(depth + 1);
+        source.append("if (!");
+        condition(stmt.condition);
+        source.append(") break;\n");
+        stmtSeq(stmt.body, depth + 1);
+        indent(depth);
+        source.append("}\n");
+    }
+
+    private void ifStmt(ParseTreeNode.If stmt, int depth)
+    {
+        source.append("if (");
+        condition(stmt.condition);
+        source.append(") {\n");
+        stmtSeq(stmt.ifBody, depth + 1);
+        if (stmt.elseBody != null)
+        {
+            indent(depth);
+            source.append("} else {\n");
+            stmtSeq(stmt.elseBody, depth + 1);
+        }
+        indent(depth);
+        source.append("}\n");
+    }
+
+    private void assign(ParseTreeNode.Assign stmt)
+    {
+        if (stmt.slot.type == VarType.INT)
+        {
+            slot(stmt.slot);
+            source.append(" = ");
+            expr(stmt.exprRHS);
+        }
+        // id = new
+        else if (stmt.exprRHS == null && stmt.idRHS == null)
+        {
+            slot(stmt.slot);
+            source.append(" = rt.newHeapVar(").append(stmt.span).append("L)");
+        }
+        // id = ref id
+        else if (stmt.exprRHS == null)
+        {
+            slot(stmt.slot);
+            source.append(" = ");
+            slot(stmt.slotRHS);
+        }
+        // id = expr, the null check comes before the right hand side is evaluated
+        else
+        {
+            source.append("if (");
+            slot(stmt.slot);
+            source.append(" == ").append(CoreRuntime.NULL_REF).append(") rt.error(").append(stmt.span)
+                .append("L, \"Can't assign a value to a null reference.\"); ");
+            source.append("rt.heapStore(");
+            slot(stmt.slot);
+            source.append(", ");
+            expr(stmt.exprRHS);
+            source.append(", ").append(stmt.span).append("L)");
+        }
+        source.append(";\n");
+    }
+
+    private void slot(ParseTreeNode.Slot slot)
+    {
+        if (slot.global) source.append("g[").append(slot.index).append("]");
+        else if (arrayLocals) source.append("l[").append(slot.index).append("]");
+        else source.append("l").append(slot.index);
+    }
+
+    private void condition(ParseTreeNode.Cond condition)
+    {
+        if (condition.cond == null)
+        {
+            comparison(condition.cmpr);
+        }
+        else if (condition.cmpr == null)
+        {
+            source.append("!(");
+            condition(condition.cond);
+            source.append(")");
+        }
+        else
+        {
+            source.append("(");
+            comparison(condition.cmpr);
+            source.append(" || ");
+            condition(condition.cond);
+            source.append(")");
+        }
+    }
+
+    private void comparison(ParseTreeNode.Cmpr cmpr)
+    {
+        source.append("(");
+        expr(cmpr.lhs);
+        if (cmpr.comparison == Core.EQUAL) source.append(" == ");
+        else if (cmpr.comparison == Core.LESS) source.append(" < ");
+        else source.append(" <= ");
+        expr(cmpr.rhs);
+        source.append(")");
+    }
+
+    // Expressions are right recursive, a - b - c is a - (b - c) = a - b + c. Java's + and - are left
+    // associative, so every term is written with the sign the - operators before it give it.
+    private void expr(ParseTreeNode.Expr expr)
+    {
+        boolean[] negative = new boolean[expr.terms.length];
+        for (int i = 1; i < negative.length; i++)
+        {
+            negative[i] = negative[i - 1] ^ expr.operators[i - 1] == Core.SUB;
+        }
+        sum(expr.terms, negative, 0, expr.terms.length);
+    }
+
+    // Terms from up to to, signs relative to the first of them. javac recurses on every binary operator,
+    // so a long chain is split in halves that are parenthesized, keeping that recursion shallow.
+    private void sum(ParseTreeNode.Term[] terms, boolean[] negative, int from, int to)
+    {
+        source.append("(");
+        if (to - from <= CHAIN)
+        {
+            for (int i = from; i < to; i++)
+            {
+                if (i > from) source.append(negative[i] != negative[from] ? " - " : " + ");
+                term(terms[i]);
+            }
+        }
+        else
+        {
+            int middle = (from + to) >>> 1;
+            sum(terms, negative, from, middle);
+            source.append(negative[middle] != negative[from] ? " - " : " + ");
+            sum(terms, negative, middle, to);
+        }
+        source.append(")");
+    }
+
+    private void term(ParseTreeNode.Term term)
+    {
+        product(term.factors, 0, term.factors.length);
+    }
+
+    private void product(ParseTreeNode.Factor[] factors, int from, int to)
+    {
+        if (to - from <= CHAIN)
+        {
+            for (int i = from; i < to; i++)
+            {
+                source.append(i == from ? "" : " * ");
+                factor(factors[i]);
+            }
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        source.append("(");
+        product(factors, from, middle);
+        source.append(") * (");
+        product(factors, middle, to);
+        source.append(")");
+    }
+
+    private void factor(ParseTreeNode.Factor factor)
+    {
+        if (factor.slot != null)
+        {
+            if (factor.slot.type == VarType.INT)
+            {
+                slot(factor.slot);
+            }
+            else
+            {
+                source.append("rt.heapLoad(");
+                slot(factor.slot);
+                source.append(", ").append(factor.span).append("L)");
+            }
+        }
+        else if (factor.expr != null)
+        {
+            expr(factor.expr);
+        }
+        else
+        {
+            source.append(factor.CONST);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+import java.util.IdentityHashMap;
+import java.util.List;
+
+// Parser for --lazy. Function bodies are skipped when the program is parsed, only where each one
+// starts is kept, and a body is parsed, checked and resolved the first time it is called. A program
+// that declares many functions but calls few of them starts faster. The catch is that a body that is
+// never called is never checked, and an error in a body is reported when it is first called, after the
+// output the program made up to then.
+public class LazyParser extends FusedParser
+{
+    // Index, line and column of the first token of every body not parsed yet
+    IdentityHashMap<ParseTreeNode.FuncDecl, int[]> bodyStarts;
+    // Applied to every body once it is parsed, null with --optimize=off
+    Optimizer optimizer;
+
+    LazyParser(TokenSource scanner)
+    {
+        super(scanner, false);
+        bodyStarts = new IdentityHashMap<>();
+        root = program();
+    }
+
+    @Override
+    List<ParseTreeNode.Stmt> funcBody(ParseTreeNode.FuncDecl decl)
+    {
+        funcHeader(decl);
+        bodyStarts.put(decl, new int[] { scanner.getIndex(), scanner.getLine(), scanner.getColumn() });
+        // Functions don't nest, so the body ends at the next endfunc
+        while (!matches(Core.ENDFUNC, Core.EOF, Core.ERROR))
+        {
+            currentToken();
+        }
+        return null;
+    }
+
+    void parseBody(ParseTreeNode.FuncDecl decl)
+    {
+        int[] start = bodyStarts.remove(decl);
+        scanner.rewind(start[0], start[1], start[2]);
+        decl.body = body(decl, functionIndices.get(decl));
+        expect("Missing 'endfunc' after function body.", Core.ENDFUNC);
+        reportError();
+        if (optimizer != null)
+        {
+            decl.body = optimizer.stmtSeq(decl.body);
+        }
+    }
+}
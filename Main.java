@@ -1,13 +1,268 @@
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 class Main {
+	// Options come before the code and data files, with --daemon they apply to every job
+	boolean allocStats = false;
+	String engine = "tree";
+	boolean disassemble = false;
+	String bytecodeFile = null;
+	int gcThreshold = Heap.DEFAULT_THRESHOLD;
+	boolean gcStats = false;
+	// Set by --gc=N and --gc-stats, which only mean something on an engine that collects
+	boolean gcOptions = false;
+	int heapLimit = 0;
+	String heapKind = "array";
+	boolean mappedScanner = false;
+	boolean heapStats = false;
+	String flush = null;
+	boolean profile = false;
+	String profileStacks = null;
+	boolean optimize = true;
+	boolean dumpTree = false;
+	int maxDepth = CoreRuntime.DEFAULT_MAX_DEPTH;
+	boolean fused = false;
+	int checkThreads = 1;
+	boolean lazy = false;
+	String cacheDir = null;
+	long cacheSize = ProgramCache.DEFAULT_SIZE;
+	String daemonSocket = null;
+	String clientSocket = null;
+
 	public static void main(String[] args) throws IOException {
-		// Initialize the scanner with the input file
-		Scanner S = new Scanner(args[0]);
-		Parser parser = new Parser(S);
-		SemanticChecker checker = new SemanticChecker(parser.root);
-		// parser.root.print(0);
-		Executor executor = new Executor(parser.root, args[1]);
+		Main options = new Main();
+		int argIndex;
+		try {
+			argIndex = options.parseOptions(args);
+		} catch (CoreError e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+			return;
+		}
+		if (options.daemonSocket != null) {
+			new Daemon(options).serve(Path.of(options.daemonSocket));
+			return;
+		}
+		if (options.clientSocket != null) {
+			System.exit(Daemon.submit(Path.of(options.clientSocket), args[argIndex], args[argIndex + 1]));
+		}
+		options.run(args, argIndex);
+	}
+
+	// Sets the options from the arguments and returns the index of the first one that isn't an option.
+	// A numeric option whose value isn't a number in its range is a CoreError.
+	int parseOptions(String[] args) {
+		int argIndex = 0;
+		while (argIndex < args.length && args[argIndex].startsWith("--")) {
+			String option = args[argIndex++];
+			if (option.equals("--alloc-stats")) {
+				allocStats = true;
+			} else if (option.startsWith("--engine=")) {
+				engine = option.substring("--engine=".length());
+			} else if (option.startsWith("--gc=")) {
+				String value = option.substring("--gc=".length());
+				gcThreshold = value.equals("off") ? 0 : (int) number("--gc", value, 0, Integer.MAX_VALUE);
+				gcOptions |= gcThreshold > 0;
+			} else if (option.equals("--gc-stats")) {
+				gcStats = true;
+				gcOptions = true;
+			} else if (option.startsWith("--heap-limit=")) {
+				heapLimit = (int) number("--heap-limit", option.substring("--heap-limit=".length()), 0, Integer.MAX_VALUE);
+			} else if (option.startsWith("--heap=")) {
+				heapKind = option.substring("--heap=".length());
+				if (!heapKind.equals("array") && !heapKind.equals("direct") && !heapKind.startsWith("mapped:")) {
+					System.out.println("Unknown heap '" + heapKind + "'.");
+					System.exit(1);
+				}
+			} else if (option.equals("--heap-stats")) {
+				heapStats = true;
+			} else if (option.startsWith("--scanner=")) {
+				String scanner = option.substring("--scanner=".length());
+				if (!scanner.equals("string") && !scanner.equals("mapped")) {
+					System.out.println("Unknown scanner '" + scanner + "'.");
+					System.exit(1);
+				}
+				mappedScanner = scanner.equals("mapped");
+			} else if (option.startsWith("--flush=")) {
+				flush = option.substring("--flush=".length());
+				if (!flush.equals("exit") && !flush.equals("input") && !flush.matches("[0-9]+")) {
+					System.out.println("Unknown flush policy '" + flush + "'.");
+					System.exit(1);
+				}
+				if (flush.matches("[0-9]+")) {
+					number("--flush", flush, 0, Integer.MAX_VALUE);
+				}
+			} else if (option.equals("--profile")) {
+				profile = true;
+			} else if (option.startsWith("--profile-stacks=")) {
+				profile = true;
+				profileStacks = option.substring("--profile-stacks=".length());
+			} else if (option.startsWith("--optimize=")) {
+				String value = option.substring("--optimize=".length());
+				if (!value.equals("on") && !value.equals("off")) {
+					System.out.println("Unknown optimize setting '" + value + "'.");
+					System.exit(1);
+				}
+				optimize = value.equals("on");
+			} else if (option.startsWith("--max-depth=")) {
+				maxDepth = (int) number("--max-depth", option.substring("--max-depth=".length()), 0, Integer.MAX_VALUE);
+			} else if (option.startsWith("--front-end=")) {
+				String value = option.substring("--front-end=".length());
+				if (!value.equals("passes") && !value.equals("fused")) {
+					System.out.println("Unknown front end '" + value + "'.");
+					System.exit(1);
+				}
+				fused = value.equals("fused");
+			} else if (option.startsWith("--check-threads=")) {
+				checkThreads = (int) number("--check-threads", option.substring("--check-threads=".length()), 1, Integer.MAX_VALUE);
+			} else if (option.equals("--lazy")) {
+				lazy = true;
+			} else if (option.startsWith("--cache=")) {
+				cacheDir = option.substring("--cache=".length());
+			} else if (option.startsWith("--cache-size=")) {
+				cacheSize = number("--cache-size", option.substring("--cache-size=".length()), 0, Long.MAX_VALUE);
+			} else if (option.equals("--dump-tree")) {
+				dumpTree = true;
+			} else if (option.equals("--disasm")) {
+				disassemble = true;
+			} else if (option.startsWith("--emit-bytecode=")) {
+				bytecodeFile = option.substring("--emit-bytecode=".length());
+			} else if (option.startsWith("--daemon=")) {
+				daemonSocket = option.substring("--daemon=".length());
+			} else if (option.startsWith("--client=")) {
+				clientSocket = option.substring("--client=".length());
+			} else {
+				System.out.println("Unknown option '" + option + "'.");
+				System.exit(1);
+			}
+		}
+
+		// Combinations that can't work are rejected before any program is read
+		if (!engine.matches("tree|stack|closure|vm|jvm")) {
+			System.out.println("Unknown engine '" + engine + "'.");
+			System.exit(1);
+		}
+		if (gcOptions && engine.equals("jvm")) {
+			// Its refs are in Java locals the collector can't see, so the heap only grows
+			System.out.println("--gc and --gc-stats can't be used with --engine=jvm, it never collects.");
+			System.exit(1);
+		}
+		if (profile && !engine.equals("tree")) {
+			System.out.println("--profile needs --engine=tree.");
+			System.exit(1);
+		}
+		if (lazy) {
+			// Only the tree engines can wait for a body until its first call
+			if (!engine.equals("tree") && !engine.equals("stack") || profile || dumpTree || disassemble || bytecodeFile != null) {
+				System.out.println("--lazy needs --engine=tree or --engine=stack.");
+				System.exit(1);
+			}
+			if (cacheDir != null) {
+				System.out.println("--cache needs the whole program parsed, it can't be used with --lazy.");
+				System.exit(1);
+			}
+		}
+		if (checkThreads > 1 && (fused || lazy)) {
+			// The fused and lazy front ends check while parsing, there are no separate bodies to hand out
+			System.out.println("--check-threads needs --front-end=passes and can't be used with --lazy.");
+			System.exit(1);
+		}
+		if (daemonSocket != null && (profile || dumpTree || disassemble || bytecodeFile != null || allocStats || heapStats
+				|| heapKind.startsWith("mapped:"))) {
+			// Jobs only send back program output, and would share the mapped heap file
+			System.out.println("--daemon can't be used with --profile, --dump-tree, --disasm, --emit-bytecode, --alloc-stats,"
+				+ " --heap-stats or --heap=mapped.");
+			System.exit(1);
+		}
+		return argIndex;
+	}
+
+	// The value of a numeric option, e.g. number("--gc", "100", 0, Integer.MAX_VALUE) for --gc=100
+	static long number(String option, String value, long min, long max) {
+		long number;
+		try {
+			number = Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new CoreError("Bad value for " + option + ": " + value);
+		}
+		if (number < min || number > max) {
+			throw new CoreError("Bad value for " + option + ": " + value);
+		}
+		return number;
+	}
+
+	void run(String[] args, int argIndex) throws IOException {
+		// A program saved with --emit-bytecode skips the front end and runs on the VM
+		if (args[argIndex].endsWith(".cbc")) {
+			BytecodeProgram program;
+			try {
+				program = readBytecode(args[argIndex]);
+			} catch (CoreError e) {
+				System.out.println(e.getMessage());
+				System.exit(1);
+				return;
+			}
+			OutputSink out = openOutput(System.out, flush, args[argIndex + 1].equals("-"));
+			CoreRuntime runtime = new CoreRuntime(program.numGlobals, program.numRefGlobals, new InputReader(args[argIndex + 1]), out);
+			configureHeap(runtime, heapKind, gcThreshold, heapLimit, gcStats);
+			runtime.maxDepth = maxDepth;
+			try {
+				new VirtualMachine(program, runtime).run();
+			} catch (CoreError e) {
+				exit(out, e);
+			} catch (IndexOutOfBoundsException e) {
+				// The verifier can't know which registers hold refs, an int used as one is only found here
+				exit(out, new CoreError("Can't run " + args[argIndex] + ": it uses a value as a ref that isn't a heap cell."));
+			} finally {
+				out.flush();
+			}
+			if (heapStats) {
+				runtime.heap.printStats(System.err);
+			}
+			return;
+		}
+
+		Parser parser;
+		try {
+			parser = frontEnd(args[argIndex], null);
+		} catch (CoreError e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+			return;
+		}
+		if (dumpTree) {
+			new TreePrinter(System.out).program(parser.root);
+			return;
+		}
+
+		if (disassemble || bytecodeFile != null) {
+			BytecodeProgram program = new BytecodeCompiler(parser.root).program;
+			if (disassemble) {
+				program.disassemble(System.out);
+			}
+			if (bytecodeFile != null) {
+				try (var out = new FileOutputStream(bytecodeFile)) {
+					program.write(out);
+				}
+			}
+			return;
+		}
+
+		// The data file is a path or "-" for stdin
+		InputReader data = new InputReader(args[argIndex + 1]);
+		OutputSink out = openOutput(System.out, flush, args[argIndex + 1].equals("-"));
+		try {
+			execute(parser, data, out);
+		} catch (CoreError e) {
+			exit(out, e);
+		}
 
 		// Print the token stream
 		// while (S.currentToken() != Core.EOF && S.currentToken() != Core.ERROR) {
@@ -26,4 +281,167 @@ class Main {
 		// 	S.nextToken();
 		// }
 	}
-}
\ No newline at end of file
+
+	// Scans, parses, checks, resolves and optimizes the program in codeFile, or in source if that isn't
+	// null, or reads its tree from the cache. A CoreError stops it at the first error.
+	Parser frontEnd(String codeFile, byte[] source) throws IOException {
+		// A cache hit replaces the whole front end, the tree it reads back is already checked, resolved and optimized
+		ProgramCache cache = null;
+		String cacheKey = null;
+		if (cacheDir != null) {
+			cache = new ProgramCache(Path.of(cacheDir), cacheSize);
+			cacheKey = cache.key(source != null ? source : Files.readAllBytes(Path.of(codeFile)), optimize);
+			ParseTreeNode.Program root = cache.load(cacheKey);
+			if (root != null) {
+				Parser parser = new Parser(null, false);
+				parser.root = root;
+				return parser;
+			}
+		}
+
+		// Initialize the scanner with the input file
+		TokenSource S = source != null ? Scanner.ofText(new String(source, StandardCharsets.US_ASCII)) : openScanner(codeFile, mappedScanner);
+		Parser parser;
+		if (lazy) {
+			parser = new LazyParser(S);
+		} else if (fused) {
+			parser = new FusedParser(S);
+		} else {
+			parser = new Parser(S);
+			new SemanticChecker(parser.root, checkThreads);
+			new Resolver(parser.root);
+		}
+		if (optimize) {
+			Optimizer optimizer = new Optimizer(parser.root);
+			if (lazy) {
+				((LazyParser) parser).optimizer = optimizer;
+			}
+		}
+		if (cache != null) {
+			cache.store(cacheKey, parser.root);
+		}
+		return parser;
+	}
+
+	// Runs the program on the chosen engine. Its output is flushed whether it ends normally or with a
+	// CoreError, which is left to the caller to print.
+	void execute(Parser parser, InputReader data, OutputSink out) throws IOException {
+		ParseTreeNode.Program root = parser.root;
+
+		// Bytes allocated by this thread while the program runs, reported on stderr so program output is unchanged
+		var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long allocatedBefore = allocStats ? threads.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+		CoreRuntime runtime = new CoreRuntime(root, data, out);
+		configureHeap(runtime, heapKind, gcThreshold, heapLimit, gcStats);
+		runtime.maxDepth = maxDepth;
+		try {
+			if (profile) {
+				ProfilingExecutor profiler = new ProfilingExecutor(root, runtime);
+				reportAtExit(profiler, profileStacks);
+				profiler.run();
+			} else if (engine.equals("tree") || engine.equals("stack")) {
+				Executor executor = engine.equals("tree") ? new Executor(root, runtime) : new StackExecutor(root, runtime);
+				if (parser instanceof LazyParser) {
+					executor.lazyParser = (LazyParser) parser;
+				}
+				executor.run();
+			} else if (engine.equals("closure")) {
+				new ClosureEngine(root, runtime).run();
+			} else if (engine.equals("jvm")) {
+				new JvmCompiler(root).run(runtime);
+			} else {
+				new VirtualMachine(new BytecodeCompiler(root).program, runtime).run();
+			}
+		} catch (StackOverflowError e) {
+			// The tree, closure and jvm engines recurse in Java on every Core call
+			runtime.error(0, "The Java stack overflowed before the call depth limit of " + maxDepth
+				+ ", run with a larger -Xss or a lower --max-depth.");
+		} finally {
+			out.flush();
+		}
+		if (allocStats) {
+			long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore;
+			System.err.println("Allocated bytes: " + allocated);
+		}
+		if (heapStats) {
+			runtime.heap.printStats(System.err);
+		}
+	}
+
+	// A runtime error is printed after the output the program made before it
+	// A program saved with --emit-bytecode, a file that is cut short or doesn't pass the verifier is a CoreError
+	static BytecodeProgram readBytecode(String filename) {
+		try (var in = new FileInputStream(filename)) {
+			return BytecodeProgram.read(in);
+		} catch (EOFException e) {
+			throw new CoreError("Can't run " + filename + ": the file is cut short.");
+		} catch (IOException e) {
+			throw new CoreError("Can't run " + filename + ": " + e.getMessage());
+		}
+	}
+
+	static void exit(OutputSink out, CoreError e) {
+		out.println(e.getMessage());
+		out.flush();
+		System.exit(1);
+	}
+
+	// Output is flushed at exit, every N lines with --flush=N or before each input read with --flush=input.
+	// Reading the data from stdin defaults to flushing on input.
+	static OutputSink openOutput(OutputStream stream, String flush, boolean stdin) {
+		OutputSink out = new OutputSink(stream);
+		setFlush(out, flush, stdin);
+		return out;
+	}
+
+	static void setFlush(OutputSink out, String flush, boolean stdin) {
+		if (flush == null) {
+			flush = stdin ? "input" : "exit";
+		}
+		if (flush.equals("input")) {
+			out.flushOnInput = true;
+		} else if (!flush.equals("exit")) {
+			out.flushEvery = (int) number("--flush", flush, 0, Integer.MAX_VALUE);
+		}
+	}
+
+	// The report goes to stderr when the JVM exits, so a program stopped by a runtime error gets one too
+	static void reportAtExit(ProfilingExecutor profiler, String stacksFile) {
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			profiler.finish();
+			profiler.report(System.err);
+			if (stacksFile != null) {
+				try {
+					profiler.writeCollapsedStacks(stacksFile);
+				} catch (IOException e) {
+					System.err.println("Can't write " + stacksFile + ": " + e.getMessage());
+				}
+			}
+		}));
+	}
+
+	// --scanner=mapped lexes the code file straight from a memory mapped file
+	static TokenSource openScanner(String filename, boolean mapped) throws IOException {
+		if (mapped) {
+			return new MappedScanner(filename);
+		}
+		return new Scanner(filename);
+	}
+
+	static void configureHeap(CoreRuntime runtime, String heapKind, int gcThreshold, int heapLimit, boolean gcStats) throws IOException {
+		// direct keeps the cells in memory outside the Java heap, mapped:file keeps them in a memory mapped file
+		if (heapKind.equals("direct")) {
+			runtime.heap = new OffHeap(gcThreshold, null);
+		} else if (heapKind.startsWith("mapped:")) {
+			runtime.heap = new OffHeap(gcThreshold, heapKind.substring("mapped:".length()));
+		}
+		runtime.heap.threshold = gcThreshold;
+		if (heapLimit > 0) {
+			// The off-heap cells are addressed in bytes by an int, a larger limit would overflow
+			runtime.heap.limit = runtime.heap instanceof OffHeap ? Math.min(heapLimit, OffHeap.MAX_CELLS) : heapLimit;
+		}
+		if (gcStats) {
+			runtime.heap.statsOut = runtime.out;
+		}
+	}
+}
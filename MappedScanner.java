@@ -0,0 +1,290 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// Same tokens and errors as Scanner, but lexes the bytes of a memory mapped file instead of
+// copying the file into a String. Keywords are recognized by length and then byte comparison, so no
+// String is built for them, and every distinct identifier is turned into a String only once and
+// kept in a table, so repeated identifiers don't allocate.
+class MappedScanner implements TokenSource {
+
+	private MappedByteBuffer contents;
+	private int length;
+	private int line = 1;
+	// Index of the first character of the current line, for columns
+	private int lineStart = 0;
+	private int tokenLine = 1;
+	private int startIndex = 0;
+	private int currentIndex = 0;
+	private Core current;
+	private String ID;
+	private int CONST;
+	private String error;
+
+	// Open addressing table of interned identifiers, indexed by hash
+	private String[] ids = new String[64];
+	private int numIDs = 0;
+
+	MappedScanner(String filename) throws IOException {
+		Path path = Paths.get(filename);
+		try (FileChannel channel = FileChannel.open(path)) {
+			contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		length = contents.limit();
+		nextToken();
+	}
+
+	// Past the end of the file reads as whitespace, like the "\n" Scanner appends
+	private int charAt(int index) {
+		return index < length ? contents.get(index) & 0xFF : '\n';
+	}
+
+	private static boolean isWhitespace(int c) {
+		return c == ' ' || (c >= '\t' && c <= '\r') || (c >= 0x1C && c <= 0x1F);
+	}
+
+	private static boolean isDigit(int c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isAlphabetic(int c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	private void skipWhitespace() {
+		int curr = charAt(currentIndex);
+		while (isWhitespace(curr)) {
+			if (curr == '\n') {
+				line++;
+				lineStart = currentIndex + 1;
+			}
+			if (currentIndex >= length) {
+				current = Core.EOF;
+				break;
+			}
+			curr = charAt(++currentIndex);
+		}
+	}
+
+	private void scanConstant() {
+		int value = 0;
+		while (isDigit(charAt(currentIndex))) {
+			value = value * 10 + charAt(currentIndex) - '0';
+			currentIndex++;
+		}
+		if (currentIndex - startIndex <= 4) {
+			CONST = value;
+			if (CONST <= 1023) {
+				current = Core.CONST;
+			}
+			else {
+				current = Core.ERROR;
+				error = "ERROR (" + line + "): Constants must be in the range 0-1023";
+			}
+		}
+		else {
+			current = Core.ERROR;
+			error = "ERROR (" + line + "): Constants can have a maximum of 4 digits";
+		}
+	}
+
+	private void scanIDOrKeyword() {
+		int curr = charAt(++currentIndex);
+		while (isAlphabetic(curr) || isDigit(curr)) {
+			curr = charAt(++currentIndex);
+		}
+
+		Core keywordToken = keyword(startIndex, currentIndex - startIndex);
+		if (keywordToken != null) {
+			current = keywordToken;
+		}
+		else {
+			current = Core.ID;
+			ID = intern(startIndex, currentIndex - startIndex);
+		}
+	}
+
+	private Core keyword(int start, int length) {
+		switch (length) {
+			case 2:
+				if (is(start, "if")) return Core.IF;
+				if (is(start, "or")) return Core.OR;
+				break;
+			case 3:
+				if (is(start, "end")) return Core.END;
+				if (is(start, "new")) return Core.NEW;
+				if (is(start, "int")) return Core.INT;
+				if (is(start, "ref")) return Core.REF;
+				break;
+			case 4:
+				if (is(start, "then")) return Core.THEN;
+				if (is(start, "else")) return Core.ELSE;
+				break;
+			case 5:
+				if (is(start, "begin")) return Core.BEGIN;
+				if (is(start, "class")) return Core.CLASS;
+				if (is(start, "while")) return Core.WHILE;
+				if (is(start, "endif")) return Core.ENDIF;
+				if (is(start, "input")) return Core.INPUT;
+				break;
+			case 6:
+				if (is(start, "define")) return Core.DEFINE;
+				if (is(start, "output")) return Core.OUTPUT;
+				break;
+			case 7:
+				if (is(start, "program")) return Core.PROGRAM;
+				if (is(start, "endfunc")) return Core.ENDFUNC;
+				if (is(start, "extends")) return Core.EXTENDS;
+				break;
+			case 8:
+				if (is(start, "endclass")) return Core.ENDCLASS;
+				if (is(start, "endwhile")) return Core.ENDWHILE;
+				break;
+		}
+		return null;
+	}
+
+	// Whether the bytes at start are the given word, the caller already checked the length
+	private boolean is(int start, String word) {
+		for (int i = 0; i < word.length(); i++) {
+			if (contents.get(start + i) != word.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String intern(int start, int length) {
+		// Same hash as String.hashCode, identifiers are ASCII
+		int hash = 0;
+		for (int i = 0; i < length; i++) {
+			hash = 31 * hash + contents.get(start + i);
+		}
+		int mask = ids.length - 1;
+		int index = hash & mask;
+		while (ids[index] != null) {
+			String id = ids[index];
+			if (id.length() == length && id.hashCode() == hash && is(start, id)) {
+				return id;
+			}
+			index = (index + 1) & mask;
+		}
+
+		byte[] bytes = new byte[length];
+		contents.get(start, bytes);
+		String id = new String(bytes, StandardCharsets.US_ASCII);
+		ids[index] = id;
+		if (++numIDs * 2 > ids.length) {
+			rehash();
+		}
+		return id;
+	}
+
+	private void rehash() {
+		String[] old = ids;
+		ids = new String[old.length * 2];
+		int mask = ids.length - 1;
+		for (String id : old) {
+			if (id != null) {
+				int index = id.hashCode() & mask;
+				while (ids[index] != null) {
+					index = (index + 1) & mask;
+				}
+				ids[index] = id;
+			}
+		}
+	}
+
+	private void scanSpecial() {
+		int curr = charAt(currentIndex);
+		// These are the only cases where special takes up two chars
+		if ((curr == '<' || curr == '=') && charAt(currentIndex + 1) == '=') {
+			currentIndex += 2;
+			current = curr == '<' ? Core.LESSEQUAL : Core.EQUAL;
+			return;
+		}
+		currentIndex++;
+
+		switch (curr) {
+			case ';': current = Core.SEMICOLON; break;
+			case '(': current = Core.LPAREN; break;
+			case ')': current = Core.RPAREN; break;
+			case ',': current = Core.COMMA; break;
+			case '=': current = Core.ASSIGN; break;
+			case '!': current = Core.NEGATION; break;
+			case '<': current = Core.LESS; break;
+			case '+': current = Core.ADD; break;
+			case '-': current = Core.SUB; break;
+			case '*': current = Core.MULT; break;
+			default:
+				current = Core.ERROR;
+				// Bytes past 127 aren't ASCII, show them as the replacement character
+				char special = curr < 128 ? (char)curr : '\uFFFD';
+				error = "ERROR (" + line + "): invalid token '" + special + "'";
+		}
+	}
+
+	public void nextToken() {
+		skipWhitespace();
+		if (current == Core.EOF) {
+			return;
+		}
+
+		startIndex = currentIndex; // store the start of the current token
+		tokenLine = line;
+		int curr = charAt(currentIndex);
+
+		if (isDigit(curr)) {
+			scanConstant();
+		}
+		else if (isAlphabetic(curr)) {
+			scanIDOrKeyword();
+		}
+		else {
+			scanSpecial();
+		}
+	}
+
+	public Core currentToken() {
+		return current;
+	}
+
+	public String getID() {
+		return ID;
+	}
+
+	public int getCONST() {
+		return CONST;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public int getLine() {
+		return tokenLine;
+	}
+
+	public int getColumn() {
+		return startIndex - lineStart + 1;
+	}
+
+	public int getEndColumn() {
+		return currentIndex - lineStart + 1;
+	}
+
+	public int getIndex() {
+		return startIndex;
+	}
+
+	public void rewind(int index, int line, int column) {
+		currentIndex = index;
+		this.line = line;
+		lineStart = index - column + 1;
+		current = null;
+		nextToken();
+	}
+}
@@ -0,0 +1,154 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Heap whose cells live outside the Java heap, either in direct memory or in a file mapped into
+// memory. A program with millions of ref cells then doesn't grow the JVM heap or give the JVM's
+// collector more to scan. The allocated and marked bits are bitmaps in direct memory too, and there
+// is no free list: the free cells are the clear allocated bits below size, found by scanning forward
+// from a cursor that a collection moves back to 0. Cells are 4 byte ints in a ByteBuffer, which caps
+// the heap at MAX_CELLS.
+public class OffHeap extends Heap {
+    static final int MAX_CELLS = Integer.MAX_VALUE / 4;
+
+    ByteBuffer buffer;
+    // Backing file when the heap is mapped, null for direct memory. The channel is only open while
+    // the file is mapped, a mapping stays valid after it is closed.
+    Path file;
+    // One bit per cell, 64 to a long
+    ByteBuffer allocatedBits;
+    ByteBuffer markedBits;
+    // Every cell below this is allocated
+    int freeCursor;
+
+    OffHeap(int threshold, String filename) throws IOException
+    {
+        super(threshold);
+        cells = null;
+        allocated = null;
+        marked = null;
+        freeList = null;
+        limit = MAX_CELLS;
+        if (filename != null)
+        {
+            file = Path.of(filename);
+            FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING).close();
+        }
+        resize(INITIAL_CAPACITY);
+    }
+
+    @Override
+    int capacity()
+    {
+        return buffer.capacity() / 4;
+    }
+
+    @Override
+    void resize(int capacity)
+    {
+        if (file != null)
+        {
+            // Mapping past the end of the file extends it, the cells already written stay in place
+            try (var channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE))
+            {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long)capacity * 4);
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+        else
+        {
+            buffer = copy(buffer, capacity * 4);
+        }
+        buffer.order(ByteOrder.nativeOrder());
+        int words = (capacity + 63) / 64;
+        allocatedBits = copy(allocatedBits, words * 8);
+        markedBits = copy(markedBits, words * 8);
+    }
+
+    // A direct buffer of size bytes, nativeOrder, that starts with the contents of old
+    private static ByteBuffer copy(ByteBuffer old, int size)
+    {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        if (old != null)
+        {
+            buffer.put(old.clear());
+            buffer.clear();
+        }
+        return buffer;
+    }
+
+    @Override
+    int get(int ref)
+    {
+        return buffer.getInt(ref * 4);
+    }
+
+    @Override
+    void set(int ref, int value)
+    {
+        buffer.putInt(ref * 4, value);
+    }
+
+    @Override
+    void mark(int ref)
+    {
+        if (ref != CoreRuntime.NULL_REF)
+        {
+            int index = (ref >>> 6) * 8;
+            markedBits.putLong(index, markedBits.getLong(index) | 1L << ref);
+        }
+    }
+
+    @Override
+    int takeFree()
+    {
+        int word = freeCursor >>> 6;
+        long free = ~allocatedBits.getLong(word * 8) & -1L << freeCursor;
+        while (free == 0)
+        {
+            free = ~allocatedBits.getLong(++word * 8);
+        }
+        freeCursor = word * 64 + Long.numberOfTrailingZeros(free);
+        return freeCursor;
+    }
+
+    @Override
+    void setAllocated(int ref)
+    {
+        int index = (ref >>> 6) * 8;
+        allocatedBits.putLong(index, allocatedBits.getLong(index) | 1L << ref);
+    }
+
+    @Override
+    void clearMarks()
+    {
+        for (int index = 0; index < markedBits.capacity(); index += 8)
+        {
+            markedBits.putLong(index, 0);
+        }
+    }
+
+    // A word at a time: the allocated bits that aren't marked are freed
+    @Override
+    int sweep()
+    {
+        int live = 0;
+        for (int index = 0; index < (size + 63) / 64 * 8; index += 8)
+        {
+            long allocatedWord = allocatedBits.getLong(index);
+            long liveWord = allocatedWord & markedBits.getLong(index);
+            allocatedBits.putLong(index, liveWord);
+            live += Long.bitCount(liveWord);
+            freeCount += Long.bitCount(allocatedWord & ~liveWord);
+        }
+        freeCursor = 0;
+        return live;
+    }
+}
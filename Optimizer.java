@@ -0,0 +1,417 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// Simplifies a resolved program before it runs. Constant subexpressions are folded, multiplying by 1,
+// adding 0 and multiplying an int expression by 0 go away, comparisons of two constants are decided,
+// and an if or while whose condition is decided loses the code that can never run.
+//
+// Sums and products are taken apart into their terms and factors and rebuilt with all the constants
+// combined into one, so 2 + x - 1 becomes x + 1. Since expressions are right recursive, a - b - c is
+// a - (b - c) and the sign of every term is worked out with that in mind. Wrapping int arithmetic is
+// associative and commutative, so moving constants doesn't change results, and everything that
+// isn't a constant stays in its original order. A read of a ref variable is never dropped, even from
+// 0 * r, because reading a null ref is a runtime error.
+//
+// This runs after the Resolver, so statements of a decided if can be moved into the enclosing block:
+// their variables already have slots. A branch that declares variables is kept in a block of its own,
+// so the tree is still a valid program for --dump-tree.
+public class Optimizer
+{
+    // An expression taken apart into the sum it stands for
+    static class Sum
+    {
+        List<ParseTreeNode.Term> terms = new ArrayList<>();
+        List<Boolean> negated = new ArrayList<>();
+        int constant;
+    }
+
+    // A term taken apart into its factors, constant factors multiplied into constant
+    static class Product
+    {
+        List<ParseTreeNode.Factor> factors = new ArrayList<>();
+        int constant = 1;
+    }
+
+    Optimizer(ParseTreeNode.Program p)
+    {
+        for (var func : p.declSeq.funcDeclSeq)
+        {
+            // With --lazy a body is only there once it has been called, LazyParser optimizes it then
+            if (func.body != null)
+            {
+                func.body = stmtSeq(func.body);
+            }
+        }
+        p.stmtSeq = stmtSeq(p.stmtSeq);
+    }
+
+    List<ParseTreeNode.Stmt> stmtSeq(List<ParseTreeNode.Stmt> stmts)
+    {
+        var result = new ArrayList<ParseTreeNode.Stmt>(stmts.size());
+        for (var stmt : stmts)
+        {
+            if (stmt instanceof ParseTreeNode.If)
+            {
+                ifStmt((ParseTreeNode.If)stmt, result);
+            }
+            else if (stmt instanceof ParseTreeNode.Loop)
+            {
+                var loop = (ParseTreeNode.Loop)stmt;
+                loop.condition = condition(loop.condition);
+                // A loop that is never entered is dropped, one that never ends stays as it is
+                if (decided(loop.condition) != Boolean.FALSE)
+                {
+                    loop.body = stmtSeq(loop.body);
+                    result.add(loop);
+                }
+            }
+            else if (stmt instanceof ParseTreeNode.Assign)
+            {
+                var assign = (ParseTreeNode.Assign)stmt;
+                if (assign.exprRHS != null)
+                {
+                    assign.exprRHS = expr(assign.exprRHS);
+                }
+                result.add(assign);
+            }
+            else if (stmt instanceof ParseTreeNode.Output)
+            {
+                var output = (ParseTreeNode.Output)stmt;
+                output.expr = expr(output.expr);
+                result.add(output);
+            }
+            else
+            {
+                result.add(stmt);
+            }
+        }
+        return result;
+    }
+
+    private void ifStmt(ParseTreeNode.If stmt, List<ParseTreeNode.Stmt> result)
+    {
+        stmt.condition = condition(stmt.condition);
+        Boolean value = decided(stmt.condition);
+        if (value == null)
+        {
+            stmt.ifBody = stmtSeq(stmt.ifBody);
+            if (stmt.elseBody != null)
+            {
+                stmt.elseBody = stmtSeq(stmt.elseBody);
+            }
+            result.add(stmt);
+        }
+        else if (value)
+        {
+            inline(stmt, stmtSeq(stmt.ifBody), result);
+        }
+        else if (stmt.elseBody != null)
+        {
+            inline(stmt, stmtSeq(stmt.elseBody), result);
+        }
+    }
+
+    // The branch of a decided if that runs. One that declares variables keeps its own block, an if
+    // that is always true, so --dump-tree doesn't print two declarations of a name in one scope.
+    private static void inline(ParseTreeNode.If stmt, List<ParseTreeNode.Stmt> body, List<ParseTreeNode.Stmt> result)
+    {
+        if (ParseTreeNode.declarations(body) == 0)
+        {
+            result.addAll(body);
+            return;
+        }
+        stmt.condition = constant(true, stmt.span);
+        stmt.ifBody = body;
+        stmt.elseBody = null;
+        result.add(stmt);
+    }
+
+    // A decided condition comes back as a comparison of two constants
+    private ParseTreeNode.Cond condition(ParseTreeNode.Cond cond)
+    {
+        if (cond.cond == null)
+        {
+            cond.cmpr = comparison(cond.cmpr);
+            return cond;
+        }
+        else if (cond.cmpr == null)
+        {
+            var negated = condition(cond.cond);
+            Boolean value = decided(negated);
+            if (value != null)
+            {
+                return constant(!value, cond.span);
+            }
+            // !(!(c)) is c
+            if (negated.cmpr == null)
+            {
+                return negated.cond;
+            }
+            cond.cond = negated;
+            return cond;
+        }
+
+        cond.cmpr = comparison(cond.cmpr);
+        Boolean lhs = decided(cond.cmpr);
+        // "or" only looks at its right side when the left one is false
+        if (lhs == Boolean.TRUE)
+        {
+            return constant(true, cond.span);
+        }
+        cond.cond = condition(cond.cond);
+        if (lhs == Boolean.FALSE)
+        {
+            return cond.cond;
+        }
+        // c or false is c, but c or true still has to evaluate c
+        if (decided(cond.cond) == Boolean.FALSE)
+        {
+            cond.cond = null;
+        }
+        return cond;
+    }
+
+    private ParseTreeNode.Cmpr comparison(ParseTreeNode.Cmpr cmpr)
+    {
+        cmpr.lhs = expr(cmpr.lhs);
+        cmpr.rhs = expr(cmpr.rhs);
+        return cmpr;
+    }
+
+    private static Boolean decided(ParseTreeNode.Cond cond)
+    {
+        if (cond.cond != null)
+        {
+            return null;
+        }
+        return decided(cond.cmpr);
+    }
+
+    private static Boolean decided(ParseTreeNode.Cmpr cmpr)
+    {
+        Integer lhs = constant(cmpr.lhs);
+        Integer rhs = constant(cmpr.rhs);
+        if (lhs == null || rhs == null)
+        {
+            return null;
+        }
+        if (cmpr.comparison == Core.EQUAL) return lhs.intValue() == rhs.intValue();
+        else if (cmpr.comparison == Core.LESS) return lhs < rhs;
+        else return lhs <= rhs;
+    }
+
+    // 0 == 0 or 0 == 1, the grammar has no boolean constants
+    private static ParseTreeNode.Cond constant(boolean value, long span)
+    {
+        var cmpr = new ParseTreeNode.Cmpr();
+        cmpr.span = span;
+        cmpr.lhs = constantExpr(0, span);
+        cmpr.comparison = Core.EQUAL;
+        cmpr.rhs = constantExpr(value ? 0 : 1, span);
+        var cond = new ParseTreeNode.Cond();
+        cond.span = span;
+        cond.cmpr = cmpr;
+        return cond;
+    }
+
+    // Value of an expression that is a single constant, null otherwise
+    private static Integer constant(ParseTreeNode.Expr expr)
+    {
+        if (expr.terms.length != 1 || expr.terms[0].factors.length != 1 || !isConstant(expr.terms[0].factors[0]))
+        {
+            return null;
+        }
+        return expr.terms[0].factors[0].CONST;
+    }
+
+    private static boolean isConstant(ParseTreeNode.Factor factor)
+    {
+        return factor.slot == null && factor.expr == null;
+    }
+
+    ParseTreeNode.Expr expr(ParseTreeNode.Expr expr)
+    {
+        var sum = new Sum();
+        add(sum, expr, false);
+        return build(sum, expr.span);
+    }
+
+    // Adds the terms of expr to sum, negated if expr itself is subtracted
+    private void add(Sum sum, ParseTreeNode.Expr expr, boolean negated)
+    {
+        add(sum, expr.terms[0], negated);
+        for (int i = 1; i < expr.terms.length; i++)
+        {
+            // In a - b - c the operator applies to all of b - c
+            negated ^= expr.operators[i - 1] == Core.SUB;
+            add(sum, expr.terms[i], negated);
+        }
+    }
+
+    private void add(Sum sum, ParseTreeNode.Term term, boolean negated)
+    {
+        var product = product(term);
+        if (product.factors.isEmpty())
+        {
+            sum.constant += negated ? -product.constant : product.constant;
+        }
+        else if (product.constant == 0 && !canFail(product.factors))
+        {
+            // 0 * x adds nothing
+        }
+        else if (product.constant == 1 && product.factors.size() == 1 && product.factors.get(0).expr != null)
+        {
+            // A parenthesized sum on its own, its terms join this sum
+            add(sum, product.factors.get(0).expr, negated);
+        }
+        else
+        {
+            sum.terms.add(build(product, term.span));
+            sum.negated.add(negated);
+        }
+    }
+
+    private Product product(ParseTreeNode.Term term)
+    {
+        var product = new Product();
+        multiply(product, term);
+        return product;
+    }
+
+    private void multiply(Product product, ParseTreeNode.Term term)
+    {
+        for (var factor : term.factors)
+        {
+            if (isConstant(factor))
+            {
+                product.constant *= factor.CONST;
+            }
+            else if (factor.expr == null)
+            {
+                product.factors.add(factor);
+            }
+            else
+            {
+                var inner = expr(factor.expr);
+                if (inner.terms.length == 1)
+                {
+                    // A parenthesized product, its factors join this product
+                    multiply(product, inner.terms[0]);
+                }
+                else
+                {
+                    factor.expr = inner;
+                    product.factors.add(factor);
+                }
+            }
+        }
+    }
+
+    // Whether evaluating one of the factors can be a runtime error, which only a ref read can be
+    private static boolean canFail(List<ParseTreeNode.Factor> factors)
+    {
+        for (var factor : factors)
+        {
+            if (canFail(factor))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean canFail(ParseTreeNode.Factor factor)
+    {
+        if (factor.slot != null)
+        {
+            return factor.slot.type == VarType.REF;
+        }
+        return factor.expr != null && canFail(factor.expr);
+    }
+
+    private static boolean canFail(ParseTreeNode.Expr expr)
+    {
+        for (var term : expr.terms)
+        {
+            if (canFail(List.of(term.factors)))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static ParseTreeNode.Term build(Product product, long span)
+    {
+        if (product.factors.isEmpty() || product.constant == 0 && !canFail(product.factors))
+        {
+            return constantTerm(product.constant, span);
+        }
+        // The constant goes first, x * 2 * y becomes 2 * x * y
+        if (product.constant != 1)
+        {
+            product.factors.add(0, constantFactor(product.constant, span));
+        }
+        var term = new ParseTreeNode.Term();
+        term.span = span;
+        term.factors = product.factors.toArray(new ParseTreeNode.Factor[0]);
+        return term;
+    }
+
+    private static ParseTreeNode.Expr build(Sum sum, long span)
+    {
+        var terms = sum.terms;
+        var negated = sum.negated;
+        // The first term of an expression is always added, a subtracted one needs something in front
+        // of it, so the constant goes first then and last otherwise
+        if (terms.isEmpty() || negated.get(0))
+        {
+            terms.add(0, constantTerm(sum.constant, span));
+            negated.add(0, false);
+        }
+        else if (sum.constant != 0)
+        {
+            // x - 1 rather than x + -1
+            boolean subtract = sum.constant < 0 && sum.constant != Integer.MIN_VALUE;
+            terms.add(constantTerm(subtract ? -sum.constant : sum.constant, span));
+            negated.add(subtract);
+        }
+
+        // A term follows the one before it with + when they have the same sign and with - otherwise,
+        // since - flips the sign of everything after it
+        var expr = new ParseTreeNode.Expr();
+        expr.span = span;
+        expr.terms = terms.toArray(new ParseTreeNode.Term[0]);
+        expr.operators = new Core[terms.size() - 1];
+        for (int i = 0; i < expr.operators.length; i++)
+        {
+            expr.operators[i] = negated.get(i) == negated.get(i + 1) ? Core.ADD : Core.SUB;
+        }
+        return expr;
+    }
+
+    private static ParseTreeNode.Expr constantExpr(int value, long span)
+    {
+        var expr = new ParseTreeNode.Expr();
+        expr.span = span;
+        expr.terms = new ParseTreeNode.Term[] { constantTerm(value, span) };
+        expr.operators = new Core[0];
+        return expr;
+    }
+
+    private static ParseTreeNode.Term constantTerm(int value, long span)
+    {
+        var term = new ParseTreeNode.Term();
+        term.span = span;
+        term.factors = new ParseTreeNode.Factor[] { constantFactor(value, span) };
+        return term;
+    }
+
+    private static ParseTreeNode.Factor constantFactor(int value, long span)
+    {
+        var factor = new ParseTreeNode.Factor();
+        factor.span = span;
+        factor.CONST = value;
+        return factor;
+    }
+}
@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+// Where output statements write. Values are formatted straight into a large byte buffer, without
+// building a String, and the buffer is written out when it fills or when the flush policy says so:
+// every flushEvery lines, before every input read (so a prompt is visible when input comes from a
+// person or another process), and always when the program ends, after a runtime error too.
+public class OutputSink {
+    static final int BUFFER_SIZE = 1 << 16;
+
+    OutputStream stream;
+    byte[] buffer;
+    int count;
+    // Flush after this many lines, 0 only flushes when the buffer is full and at exit
+    int flushEvery;
+    int lines;
+    boolean flushOnInput;
+
+    OutputSink(OutputStream stream)
+    {
+        this.stream = stream;
+        buffer = new byte[BUFFER_SIZE];
+    }
+
+    void println(int value)
+    {
+        // Enough for "-2147483648\n"
+        if (count + 12 > buffer.length)
+        {
+            flush();
+        }
+        int end = count + digits(value) + 1;
+        int pos = end - 1;
+        buffer[pos] = '\n';
+        // Work with the negated value so Integer.MIN_VALUE doesn't overflow
+        int negative = value < 0 ? value : -value;
+        do
+        {
+            buffer[--pos] = (byte)('0' - negative % 10);
+            negative /= 10;
+        } while (negative != 0);
+        if (value < 0)
+        {
+            buffer[--pos] = '-';
+        }
+        count = end;
+        endLine();
+    }
+
+    private static int digits(int value)
+    {
+        int digits = value < 0 ? 2 : 1;
+        for (int rest = value / 10; rest != 0; rest /= 10)
+        {
+            digits++;
+        }
+        return digits;
+    }
+
+    // For messages like runtime errors and collector stats, the text is ASCII
+    void println(String message)
+    {
+        for (int i = 0; i < message.length(); i++)
+        {
+            if (count == buffer.length)
+            {
+                flush();
+            }
+            buffer[count++] = (byte)message.charAt(i);
+        }
+        if (count == buffer.length)
+        {
+            flush();
+        }
+        buffer[count++] = '\n';
+        endLine();
+    }
+
+    private void endLine()
+    {
+        if (flushEvery > 0 && ++lines == flushEvery)
+        {
+            lines = 0;
+            flush();
+        }
+    }
+
+    void flush()
+    {
+        try
+        {
+            stream.write(buffer, 0, count);
+            stream.flush();
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        count = 0;
+    }
+}
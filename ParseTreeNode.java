@@ -2,10 +2,79 @@ import java.util.List;
 
 public abstract class ParseTreeNode
 {
+    // Where the node is in the source, set by the Parser. The start and the end (just past the last
+    // token) are positions packed into the high and low half of one long, so a big tree doesn't pay
+    // for four ints per node. 0 means the node has no position.
+    public long span;
+
+    // A position keeps the line in its top 20 bits and the column in the low 12, larger values are
+    // clamped to the maximum
+    static final int COLUMN_BITS = 12;
+    static final int MAX_COLUMN = (1 << COLUMN_BITS) - 1;
+    static final int MAX_LINE = (1 << (32 - COLUMN_BITS)) - 1;
+
+    static int position(int line, int column)
+    {
+        return Math.min(line, MAX_LINE) << COLUMN_BITS | Math.min(column, MAX_COLUMN);
+    }
+
+    static long span(int start, int end)
+    {
+        return (long)start << 32 | (end & 0xFFFFFFFFL);
+    }
+
+    static int line(long span)
+    {
+        return (int)(span >>> 32) >>> COLUMN_BITS;
+    }
+
+    static int column(long span)
+    {
+        return (int)(span >>> 32) & MAX_COLUMN;
+    }
+
+    // "line:column" of the start of the span
+    static String format(long span)
+    {
+        return line(span) + ":" + column(span);
+    }
+
+    // Storage location of a variable, filled in by the Resolver
+    public static class Slot
+    {
+        public boolean global;
+        public int index;
+        public VarType type;
+
+        public Slot(boolean global, int index, VarType type)
+        {
+            this.global = global;
+            this.index = index;
+            this.type = type;
+        }
+    }
+
+    // Number of variables a block declares itself, nested blocks not counted
+    static int declarations(List<Stmt> stmts)
+    {
+        int count = 0;
+        for (var stmt : stmts)
+        {
+            if (stmt instanceof VarDecl)
+            {
+                count += ((VarDecl)stmt).ids.size();
+            }
+        }
+        return count;
+    }
+
     public static class Program extends ParseTreeNode
     {
         public DeclSeq declSeq;
         public List<Stmt> stmtSeq;
+        public int numGlobals;
+        public int numRefGlobals;
+        public int frameSize;
     }
 
     public static class DeclSeq
@@ -21,6 +90,10 @@ public abstract class ParseTreeNode
         public String id;
         public Expr exprRHS;
         public String idRHS;
+        public Slot slot;
+        public Slot slotRHS;
+        // For id = new, number of ref slots of the frame in scope here
+        public int liveRefs;
     }
 
     public static class If extends Stmt
@@ -39,6 +112,7 @@ public abstract class ParseTreeNode
     public static class Input extends Stmt
     {
         public String id;
+        public Slot slot;
     }
 
     public static class Output extends Stmt
@@ -50,12 +124,17 @@ public abstract class ParseTreeNode
     {
         public VarType type;
         public List<String> ids;
+        public Slot[] slots;
     }
 
     public static class FuncCall extends Stmt
     {
         public String id;   
         public List<String> params;
+        public FuncDecl func;
+        public Slot[] args;
+        // Number of ref slots of the caller's frame in scope during the call
+        public int liveRefs;
     }
 
     public static class FuncDecl extends ParseTreeNode
@@ -63,6 +142,7 @@ public abstract class ParseTreeNode
         public String id;
         public List<String> params;
         public List<Stmt> body;
+        public int frameSize;
     }
 
     public static class Cond extends ParseTreeNode
@@ -78,17 +158,19 @@ public abstract class ParseTreeNode
         public Expr rhs;
     }
 
+    // Terms joined by + and -, operators[i] is between terms[i] and terms[i + 1]. Expressions are
+    // right recursive, a - b - c is a - (b - c), so an operator applies to all the terms after it: a -
+    // flips the sign of every later term. Kept flat so a long chain isn't a deep recursion anywhere.
     public static class Expr extends ParseTreeNode
     {
-        public Term lhs;
-        public Core operator;
-        public Expr rhs;
+        public Term[] terms;
+        public Core[] operators;
     }
 
+    // Factors that are multiplied
     public static class Term extends ParseTreeNode
     {
-        public Factor lhs;
-        public Term rhs;
+        public Factor[] factors;
     }
 
     public static class Factor extends ParseTreeNode
@@ -96,5 +178,6 @@ public abstract class ParseTreeNode
         public String id;
         public int CONST;
         public Expr expr;
+        public Slot slot;
     }
 }
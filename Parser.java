@@ -2,15 +2,29 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class Parser {
-    private Scanner scanner;
+    private static final Core[] NO_OPERATORS = new Core[0];
+
+    TokenSource scanner;
     public ParseTreeNode.Program root;
+    // Where the last consumed token ended, for node spans
+    private int lastEnd;
 
-    Parser(Scanner scanner)
+    Parser(TokenSource scanner)
     {
         this.scanner = scanner;
         root = program();
     }
 
+    // For a subclass that has to set up its own state before it calls program()
+    Parser(TokenSource scanner, boolean parse)
+    {
+        this.scanner = scanner;
+        if (parse)
+        {
+            root = program();
+        }
+    }
+
     Core expect(String errorMessage, Core ...expectedTokens)
     {
         Core current = scanner.currentToken();
@@ -18,13 +32,11 @@ public class Parser {
         {
             if (current == token) 
             {
-                scanner.nextToken();
+                advance();
                 return current;
             }
         }
-        System.out.println(errorMessage);
-        System.exit(1);
-        return null; // Dummy return so java doesn't complain about missing return
+        throw syntaxError(errorMessage);
     }
 
     boolean consume(Core token)
@@ -36,7 +48,7 @@ public class Parser {
         }
         else 
         {
-            scanner.nextToken();
+            advance();
             return true;
         }
     }
@@ -54,6 +66,26 @@ public class Parser {
         return false;
     }
 
+    // Moves past the current token, remembering where it ended
+    private void advance()
+    {
+        lastEnd = ParseTreeNode.position(scanner.getLine(), scanner.getEndColumn());
+        scanner.nextToken();
+    }
+
+    // Position of the current token, where a node that begins with it starts
+    private int start()
+    {
+        return ParseTreeNode.position(scanner.getLine(), scanner.getColumn());
+    }
+
+    // Gives the node the span from start to the end of the last consumed token
+    private <T extends ParseTreeNode> T finish(T node, int start)
+    {
+        node.span = ParseTreeNode.span(start, lastEnd);
+        return node;
+    }
+
     String expectID(String errorMessage)
     {
         if (matches(Core.ID))
@@ -62,23 +94,30 @@ public class Parser {
         }
         else 
         {
-            System.out.println(errorMessage);
-            System.exit(1);
-            return null; // dummy return
+            throw syntaxError(errorMessage);
         }
     }
 
+    // A token the scanner couldn't make sense of stops the parser right there, its message comes first
+    CoreError syntaxError(String message)
+    {
+        if (scanner.currentToken() == Core.ERROR)
+        {
+            return new CoreError(scanner.getError() + "\n" + message);
+        }
+        return new CoreError(message);
+    }
+
     ParseTreeNode.Program program() 
     {
         var program = new ParseTreeNode.Program();
+        int start = start();
         expect("Program must start with 'program' keyword.", Core.PROGRAM);
-        if (matches(Core.INT, Core.REF, Core.ID))
-        {
-            program.declSeq = declSeq();
-        }
+        program.declSeq = declSeq();
         expect( "Program body must start with 'begin' keyword.", Core.BEGIN);
         program.stmtSeq = stmtSeq();
         expect("Program body must end with 'end' keyword.", Core.END);
+        finish(program, start);
         expect("Invalid tokens after program end.", Core.EOF);
         return program;
     }
@@ -101,7 +140,7 @@ public class Parser {
     {
         var stmts = new ArrayList<ParseTreeNode.Stmt>();
         stmts.add(stmt());
-        while (matches(Core.ID, Core.IF, Core.WHILE, Core.INPUT, Core.OUTPUT, Core.INT, Core.REF))
+        while (matches(Core.ID, Core.IF, Core.WHILE, Core.INPUT, Core.OUTPUT, Core.INT, Core.REF, Core.BEGIN))
         {
             stmts.add(stmt());
         }
@@ -111,6 +150,7 @@ public class Parser {
     ParseTreeNode.VarDecl decl() 
     {
         var decl = new ParseTreeNode.VarDecl();
+        int start = start();
         if (consume(Core.INT))
         {
             decl.type = VarType.INT;
@@ -122,21 +162,28 @@ public class Parser {
         }
         decl.ids = idList();
         expect("Declaration must end with ';'.", Core.SEMICOLON);
-        return decl;
+        return finish(decl, start);
     }
 
     ParseTreeNode.FuncDecl funcDecl()
     {
         var decl = new ParseTreeNode.FuncDecl();
+        int start = start();
         decl.id = id();
         expect("Missing '(' before function parameters.", Core.LPAREN);
         expect("Missing 'ref' before function parameters.", Core.REF);
         decl.params = idList();
-        expect("Missing ')' after function parameters.", Core.LPAREN);
+        expect("Missing ')' after function parameters.", Core.RPAREN);
         expect("Missing 'begin' before function body.", Core.BEGIN);
-        decl.body = stmtSeq();
+        decl.body = funcBody(decl);
         expect("Missing 'endfunc' after function body.", Core.ENDFUNC);
-        return decl;
+        return finish(decl, start);
+    }
+
+    // The statements of decl's body, its id and params are already parsed
+    List<ParseTreeNode.Stmt> funcBody(ParseTreeNode.FuncDecl decl)
+    {
+        return stmtSeq();
     }
 
     List<String> idList()
@@ -153,55 +200,59 @@ public class Parser {
     String id()
     {
         String id = scanner.getID();
-        scanner.nextToken();
+        advance();
         return id;
     }
 
     int CONST()
     {
         int CONST = scanner.getCONST();
-        scanner.nextToken();
+        advance();
         return CONST;
     }
 
     Core currentToken()
     {
         Core token = scanner.currentToken();
-        scanner.nextToken();
+        advance();
         return token;
     }
 
     ParseTreeNode.Stmt stmt()
     {
+        int start = start();
+        ParseTreeNode.Stmt stmt;
         if (consume(Core.IF))
         {
-            return ifStmt();
+            stmt = ifStmt();
         }
         else if (matches(Core.ID))
         {
-            return assign();
+            stmt = assign();
         }
         else if (consume(Core.WHILE))
         {
-            return loop();
+            stmt = loop();
         }
         else if (consume(Core.INPUT))
         {
-            return input();
+            stmt = input();
         }
         else if (matches(Core.INT, Core.REF))
         {
-            return decl();
+            stmt = decl();
         }
         else if (consume(Core.BEGIN))
         {
-            return funcCall();
+            stmt = funcCall();
         }
         else 
         {
             expect("Invalid statement.", Core.OUTPUT);
-            return output();
+            stmt = output();
         }
+        // The keyword was consumed before the statement's own method ran
+        return finish(stmt, start);
     }
 
     private ParseTreeNode.Stmt funcCall() {
@@ -210,6 +261,7 @@ public class Parser {
         expect("Missing '(' before function arguments.", Core.LPAREN);
         stmt.params = idList();
         expect("Missing ')' after function arguments.", Core.RPAREN);
+        expect("Missing ';' at end of function call.", Core.SEMICOLON);
         return stmt;
     }
 
@@ -229,7 +281,7 @@ public class Parser {
 
     private ParseTreeNode.Loop loop() {
         ParseTreeNode.Loop loop = new ParseTreeNode.Loop();
-        loop.condition = condition();
+        loop.condition = statementCondition();
         expect("Loop body must start with 'begin' keyword.", Core.BEGIN);
         loop.body = stmtSeq();
         expect("Loop body must end with 'endwhile' keyword.", Core.ENDWHILE);
@@ -259,7 +311,7 @@ public class Parser {
     ParseTreeNode.If ifStmt()
     {
         ParseTreeNode.If stmt = new ParseTreeNode.If();
-        stmt.condition = condition();
+        stmt.condition = statementCondition();
         expect("If statement body must begin with 'then' keyword.", Core.THEN);
         stmt.ifBody = stmtSeq();
         if (consume(Core.ELSE))
@@ -270,8 +322,15 @@ public class Parser {
         return stmt;
     }
 
+    // Condition of an if or while, parsed before its body
+    ParseTreeNode.Cond statementCondition()
+    {
+        return condition();
+    }
+
     private ParseTreeNode.Cond condition()  {
         ParseTreeNode.Cond cond = new ParseTreeNode.Cond();
+        int start = start();
 
         if (consume(Core.NEGATION))
         {
@@ -288,40 +347,65 @@ public class Parser {
             }
         }
 
-        return cond;
+        return finish(cond, start);
     }
 
     private ParseTreeNode.Cmpr comparison() {
         ParseTreeNode.Cmpr cmpr = new ParseTreeNode.Cmpr();
+        int start = start();
         cmpr.lhs = expression();
         cmpr.comparison = expect("Invalid comparison operator.", Core.EQUAL, Core.LESSEQUAL, Core.LESS);
         cmpr.rhs = expression();
-        return cmpr;
+        return finish(cmpr, start);
     }
 
+    // A chain of terms is parsed in a loop rather than by recursing for every operator. Most
+    // expressions are a single term, they don't need the lists.
     private ParseTreeNode.Expr expression() {
         ParseTreeNode.Expr expr = new ParseTreeNode.Expr();
-        expr.lhs = term();
-        if (matches(Core.ADD, Core.SUB))
+        int start = start();
+        ParseTreeNode.Term first = term();
+        if (!matches(Core.ADD, Core.SUB))
         {
-            expr.operator = currentToken();
-            expr.rhs = expression();
+            expr.terms = new ParseTreeNode.Term[] { first };
+            expr.operators = NO_OPERATORS;
+            return finish(expr, start);
         }
-        return expr;
+        var terms = new ArrayList<ParseTreeNode.Term>();
+        var operators = new ArrayList<Core>();
+        terms.add(first);
+        while (matches(Core.ADD, Core.SUB))
+        {
+            operators.add(currentToken());
+            terms.add(term());
+        }
+        expr.terms = terms.toArray(new ParseTreeNode.Term[terms.size()]);
+        expr.operators = operators.toArray(new Core[operators.size()]);
+        return finish(expr, start);
     }
 
     private ParseTreeNode.Term term() {
         ParseTreeNode.Term term = new ParseTreeNode.Term();
-        term.lhs = factor();
-        if (consume(Core.MULT))
+        int start = start();
+        ParseTreeNode.Factor first = factor();
+        if (!matches(Core.MULT))
+        {
+            term.factors = new ParseTreeNode.Factor[] { first };
+            return finish(term, start);
+        }
+        var factors = new ArrayList<ParseTreeNode.Factor>();
+        factors.add(first);
+        while (consume(Core.MULT))
         {
-            term.rhs =  term();
+            factors.add(factor());
         }
-        return term;
+        term.factors = factors.toArray(new ParseTreeNode.Factor[factors.size()]);
+        return finish(term, start);
     }
 
     private ParseTreeNode.Factor factor() {
         ParseTreeNode.Factor factor = new ParseTreeNode.Factor();
+        int start = start();
         if (matches(Core.ID))
         {
             factor.id = id();
@@ -337,7 +421,7 @@ public class Parser {
             factor.expr = expression();
             expect("Missing ')' at end of factor expression.", Core.RPAREN);
         }
-        return factor;
+        return finish(factor, start);
     }
 
     
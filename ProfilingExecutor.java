@@ -0,0 +1,246 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+// Executor for --profile. Counts how often every statement runs, how often every function is called
+// and how long it takes, and how many heap cells every `id = new` allocates. The counting lives in
+// this subclass so the plain Executor does no profiling work at all when the flag is off.
+//
+// Statements are named by the function they are in and the line and column they start at, "A 12:5".
+public class ProfilingExecutor extends Executor {
+    static final int REPORT_STATEMENTS = 25;
+
+    static class StmtProfile
+    {
+        String label;
+        long count;
+    }
+
+    static class FuncProfile
+    {
+        String name;
+        long calls;
+        long totalNanos;
+        // Recursive calls are already inside the outermost call's time
+        int active;
+    }
+
+    // One node per distinct call stack, for the collapsed stack output
+    static class CallNode
+    {
+        String name;
+        CallNode parent;
+        IdentityHashMap<ParseTreeNode.FuncDecl, CallNode> children = new IdentityHashMap<>();
+        long selfNanos;
+
+        CallNode(String name, CallNode parent)
+        {
+            this.name = name;
+            this.parent = parent;
+        }
+    }
+
+    IdentityHashMap<ParseTreeNode.Stmt, StmtProfile> statements = new IdentityHashMap<>();
+    IdentityHashMap<ParseTreeNode.FuncDecl, FuncProfile> functions = new IdentityHashMap<>();
+    IdentityHashMap<ParseTreeNode.Assign, StmtProfile> allocations = new IdentityHashMap<>();
+    CallNode root = new CallNode("main", null);
+    CallNode currentNode = root;
+    // Time spent in callees of the running call, taken out of its self time
+    long childNanos;
+    long startNanos;
+    long mainNanos;
+
+    ProfilingExecutor(ParseTreeNode.Program p, CoreRuntime runtime)
+    {
+        super(p, runtime);
+        for (var func : p.declSeq.funcDeclSeq)
+        {
+            var profile = new FuncProfile();
+            profile.name = func.id;
+            functions.put(func, profile);
+            label(func.body, func.id);
+        }
+        label(p.stmtSeq, "main");
+    }
+
+    private void label(List<ParseTreeNode.Stmt> stmts, String function)
+    {
+        for (var stmt : stmts)
+        {
+            var profile = new StmtProfile();
+            profile.label = function + " " + ParseTreeNode.format(stmt.span) + " " + describe(stmt);
+            statements.put(stmt, profile);
+            if (stmt instanceof ParseTreeNode.If)
+            {
+                var ifStmt = (ParseTreeNode.If)stmt;
+                label(ifStmt.ifBody, function);
+                if (ifStmt.elseBody != null)
+                {
+                    label(ifStmt.elseBody, function);
+                }
+            }
+            else if (stmt instanceof ParseTreeNode.Loop)
+            {
+                label(((ParseTreeNode.Loop)stmt).body, function);
+            }
+            else if (stmt instanceof ParseTreeNode.Assign && ((ParseTreeNode.Assign)stmt).exprRHS == null
+                && ((ParseTreeNode.Assign)stmt).idRHS == null)
+            {
+                var allocationProfile = new StmtProfile();
+                allocationProfile.label = profile.label;
+                allocations.put((ParseTreeNode.Assign)stmt, allocationProfile);
+            }
+        }
+    }
+
+    private static String describe(ParseTreeNode.Stmt stmt)
+    {
+        if (stmt instanceof ParseTreeNode.Assign)
+        {
+            var assign = (ParseTreeNode.Assign)stmt;
+            if (assign.exprRHS != null) return assign.id + " = ...";
+            else if (assign.idRHS != null) return assign.id + " = ref " + assign.idRHS;
+            else return assign.id + " = new";
+        }
+        else if (stmt instanceof ParseTreeNode.If) return "if";
+        else if (stmt instanceof ParseTreeNode.Loop) return "while";
+        else if (stmt instanceof ParseTreeNode.Input) return "input " + ((ParseTreeNode.Input)stmt).id;
+        else if (stmt instanceof ParseTreeNode.Output) return "output";
+        else if (stmt instanceof ParseTreeNode.VarDecl)
+        {
+            var decl = (ParseTreeNode.VarDecl)stmt;
+            return (decl.type == VarType.INT ? "int " : "ref ") + String.join(", ", decl.ids);
+        }
+        else
+        {
+            var call = (ParseTreeNode.FuncCall)stmt;
+            return "begin " + call.id + "(" + String.join(", ", call.params) + ")";
+        }
+    }
+
+    @Override
+    void run()
+    {
+        startNanos = System.nanoTime();
+        super.run();
+        finish();
+    }
+
+    // Closes the main body's time, also called when the program stops on a runtime error
+    void finish()
+    {
+        if (mainNanos == 0)
+        {
+            mainNanos = System.nanoTime() - startNanos;
+            root.selfNanos = mainNanos - childNanos;
+        }
+    }
+
+    @Override
+    void stmt(ParseTreeNode.Stmt stmt)
+    {
+        statements.get(stmt).count++;
+        super.stmt(stmt);
+    }
+
+    @Override
+    void newHeapVar(ParseTreeNode.Assign stmt)
+    {
+        allocations.get(stmt).count++;
+        super.newHeapVar(stmt);
+    }
+
+    @Override
+    void executeFunc(ParseTreeNode.FuncCall call)
+    {
+        var func = call.func;
+        var profile = functions.get(func);
+        profile.calls++;
+        profile.active++;
+
+        var caller = currentNode;
+        var node = caller.children.get(func);
+        if (node == null)
+        {
+            node = new CallNode(func.id, caller);
+            caller.children.put(func, node);
+        }
+        currentNode = node;
+        long callerChildNanos = childNanos;
+        childNanos = 0;
+        long start = System.nanoTime();
+
+        super.executeFunc(call);
+
+        long elapsed = System.nanoTime() - start;
+        node.selfNanos += elapsed - childNanos;
+        childNanos = callerChildNanos + elapsed;
+        currentNode = caller;
+        if (--profile.active == 0)
+        {
+            profile.totalNanos += elapsed;
+        }
+    }
+
+    void report(PrintStream out)
+    {
+        out.printf("profile: main body %.3f ms%n", mainNanos / 1e6);
+
+        var funcs = new ArrayList<>(functions.values());
+        funcs.sort(Comparator.comparingLong((FuncProfile f) -> f.totalNanos).reversed());
+        out.println();
+        out.printf("%12s %12s  %s%n", "calls", "total ms", "function");
+        for (var func : funcs)
+        {
+            out.printf("%12d %12.3f  %s%n", func.calls, func.totalNanos / 1e6, func.name);
+        }
+
+        printCounts(out, "executions", new ArrayList<>(statements.values()), REPORT_STATEMENTS);
+        printCounts(out, "allocations", new ArrayList<>(allocations.values()), Integer.MAX_VALUE);
+    }
+
+    private static void printCounts(PrintStream out, String title, List<StmtProfile> profiles, int limit)
+    {
+        profiles.removeIf(profile -> profile.count == 0);
+        profiles.sort(Comparator.comparingLong((StmtProfile s) -> s.count).reversed());
+        out.println();
+        out.printf("%12s  %s%n", title, "statement");
+        for (int i = 0; i < profiles.size() && i < limit; i++)
+        {
+            out.printf("%12d  %s%n", profiles.get(i).count, profiles.get(i).label);
+        }
+        if (profiles.size() > limit)
+        {
+            out.println("         ...  " + (profiles.size() - limit) + " more");
+        }
+    }
+
+    // One "main;A;B microseconds" line per call stack with its self time, the format flame graph tools read
+    void writeCollapsedStacks(String filename) throws IOException
+    {
+        try (var out = new PrintStream(filename))
+        {
+            writeStacks(out, root, new StringBuilder(root.name));
+        }
+    }
+
+    // stack holds the frames down to node, a child appends its name and cuts it off again when done
+    private void writeStacks(PrintStream out, CallNode node, StringBuilder stack)
+    {
+        long micros = node.selfNanos / 1000;
+        if (micros > 0)
+        {
+            out.append(stack).append(' ').println(micros);
+        }
+        int length = stack.length();
+        for (var child : node.children.values())
+        {
+            stack.append(';').append(child.name);
+            writeStacks(out, child, stack);
+            stack.setLength(length);
+        }
+    }
+}
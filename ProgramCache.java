@@ -0,0 +1,139 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+
+// --cache=dir keeps the tree of every program that made it through the front end in dir, as a TreeFile
+// named by the SHA-256 of the interpreter version, the TreeFile format, the optimize setting and the source. A run whose
+// source is already there reads the tree back and skips scanning, parsing, checking, resolving and
+// optimizing. A hit sets the file's modification time, and after a store the least recently used
+// files are deleted until the directory is under --cache-size bytes. Files are written under a
+// temporary name and renamed, so runs sharing the directory never read a partial file.
+public class ProgramCache
+{
+    // Bump when the tree, the Resolver's slot layout or the Optimizer changes, the old files then never
+    // match again and age out. TreeFile.FORMAT covers the file's encoding.
+    static final int VERSION = 1;
+    static final long DEFAULT_SIZE = 64L << 20;
+    static final String SUFFIX = ".tree";
+
+    Path dir;
+    long maxSize;
+
+    ProgramCache(Path dir, long maxSize)
+    {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    String key(byte[] source, boolean optimize)
+    {
+        // The file stores tokens and types by ordinal, so adding or reordering either enum changes the key
+        String header = "core " + VERSION + " " + TreeFile.FORMAT + " " + Arrays.toString(TreeFile.TOKENS)
+            + Arrays.toString(VarType.values()) + (optimize ? " optimized\n" : "\n");
+        var digest = TreeFile.digest();
+        digest.update(header.getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(digest.digest(source));
+    }
+
+    // The cached tree, or null on a miss. A file that can't be read, from another version or cut short,
+    // is a miss too and gets replaced by the store after the front end runs.
+    ParseTreeNode.Program load(String key)
+    {
+        Path file = dir.resolve(key + SUFFIX);
+        ParseTreeNode.Program program;
+        try (var in = Files.newInputStream(file))
+        {
+            program = TreeFile.read(in, VERSION);
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+        try
+        {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        }
+        catch (IOException e)
+        {
+            // Evicted by another run since it was read
+        }
+        return program;
+    }
+
+    // A cache that can't be written to only costs the next run the front end, so this warns and goes on
+    void store(String key, ParseTreeNode.Program program)
+    {
+        try
+        {
+            Files.createDirectories(dir);
+            Path temp = Files.createTempFile(dir, key, ".tmp");
+            try
+            {
+                try (var out = Files.newOutputStream(temp))
+                {
+                    TreeFile.write(program, out, VERSION);
+                }
+                // A tree bigger than the whole cache would only push everything else out
+                if (Files.size(temp) > maxSize)
+                {
+                    return;
+                }
+                Files.move(temp, dir.resolve(key + SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally
+            {
+                Files.deleteIfExists(temp);
+            }
+            evict();
+        }
+        catch (IOException e)
+        {
+            System.err.println("Can't write to the program cache " + dir + ": " + e.getMessage());
+        }
+    }
+
+    // Keeps the most recently used files that fit in maxSize. Another run may delete a file between the
+    // listing and here, which is fine.
+    private void evict() throws IOException
+    {
+        var entries = new ArrayList<Path>();
+        var times = new HashMap<Path, Long>();
+        var sizes = new HashMap<Path, Long>();
+        try (var files = Files.newDirectoryStream(dir, "*" + SUFFIX))
+        {
+            for (Path file : files)
+            {
+                try
+                {
+                    long time = Files.getLastModifiedTime(file).toMillis();
+                    sizes.put(file, Files.size(file));
+                    times.put(file, time);
+                    entries.add(file);
+                }
+                catch (NoSuchFileException e)
+                {
+                    // Evicted by another run
+                }
+            }
+        }
+
+        entries.sort((a, b) -> Long.compare(times.get(b), times.get(a)));
+        long total = 0;
+        for (Path file : entries)
+        {
+            total += sizes.get(file);
+            if (total > maxSize)
+            {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,236 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+// Walks a checked program with the same scope rules as the SemanticChecker and replaces every
+// variable name with the slot it lives in. Globals get indices into the global array, everything
+// else gets an index into the locals array of its function's (or the main body's) frame. Slots of
+// a block are released when the block ends so sibling blocks share them.
+//
+// Ref slots always come before int slots, in the globals and in every frame, and are handed out in
+// block order. So the refs in scope at any point are exactly the first liveRefs slots of the frame,
+// which is what the heap's garbage collector uses as roots.
+public class Resolver {
+    Frame<ParseTreeNode.Slot> currentFrame;
+    Frame<ParseTreeNode.Slot> globalFrame;
+    Scope<ParseTreeNode.Slot> globalScope;
+    HashMap<String, ParseTreeNode.FuncDecl> functions;
+    int numGlobals;
+    int numRefGlobals;
+    // Ref and int slots are counted separately, int slots get moved above the refs when the frame ends
+    int nextRef;
+    int nextInt;
+    int maxRefs;
+    int maxInts;
+    List<ParseTreeNode.Slot> intSlots;
+
+    private void pushFrame(List<String> params) {
+        List<ParseTreeNode.Slot> paramSlots = new ArrayList<>();
+        for (int i = 0; i < params.size(); i++) {
+            paramSlots.add(new ParseTreeNode.Slot(false, i, VarType.REF));
+        }
+        currentFrame = new Frame<>(globalScope, params, paramSlots, currentFrame);
+        nextRef = params.size();
+        nextInt = 0;
+        maxRefs = nextRef;
+        maxInts = 0;
+        intSlots = new ArrayList<>();
+    }
+
+    // Returns the size of the frame that was popped
+    private int popFrame() {
+        for (var slot : intSlots) {
+            slot.index += maxRefs;
+        }
+        currentFrame = currentFrame.parent;
+        return maxRefs + maxInts;
+    }
+
+    private void pushScope(int declarations)
+    {
+        currentFrame.pushScope(declarations);
+    }
+
+    private void popScope()
+    {
+        currentFrame.popScope();
+    }
+
+    private Scope<ParseTreeNode.Slot> currentScope()
+    {
+        return currentFrame.currentScope;
+    }
+
+    public Resolver(ParseTreeNode.Program root) {
+        globalFrame = new Frame<>();
+        currentFrame = globalFrame;
+        globalScope = globalFrame.currentScope;
+        functions = new HashMap<>();
+        program(root);
+    }
+
+    void program(ParseTreeNode.Program program) {
+        declSeq(program.declSeq);
+        program.numGlobals = numGlobals;
+        program.numRefGlobals = numRefGlobals;
+
+        // The main body gets its own frame whose parent scope is the global scope, same as a function
+        pushFrame(new ArrayList<>());
+        stmtSeq(program.stmtSeq);
+        program.frameSize = popFrame();
+    }
+
+    void declSeq(ParseTreeNode.DeclSeq decls) {
+        List<ParseTreeNode.Slot> intGlobals = new ArrayList<>();
+        for (ParseTreeNode.VarDecl decl : decls.declSeq) {
+            decl.slots = new ParseTreeNode.Slot[decl.ids.size()];
+            for (int i = 0; i < decl.ids.size(); i++) {
+                ParseTreeNode.Slot slot;
+                if (decl.type == VarType.REF) {
+                    slot = new ParseTreeNode.Slot(true, numRefGlobals++, decl.type);
+                } else {
+                    slot = new ParseTreeNode.Slot(true, intGlobals.size(), decl.type);
+                    intGlobals.add(slot);
+                }
+                decl.slots[i] = slot;
+                globalScope.Declare(decl.ids.get(i), slot);
+            }
+        }
+        for (var slot : intGlobals) {
+            slot.index += numRefGlobals;
+        }
+        numGlobals = numRefGlobals + intGlobals.size();
+
+        for (ParseTreeNode.FuncDecl decl : decls.funcDeclSeq) {
+            funcDecl(decl);
+        }
+    }
+
+    void stmtSeq(List<ParseTreeNode.Stmt> stmts) {
+        int blockRefs = nextRef;
+        int blockInts = nextInt;
+        // Same scopes as the SemanticChecker: only blocks that declare something get one
+        int declarations = ParseTreeNode.declarations(stmts);
+        if (declarations > 0) pushScope(declarations);
+        for (ParseTreeNode.Stmt stmt : stmts) {
+            stmt(stmt);
+        }
+        if (declarations > 0) popScope();
+        nextRef = blockRefs;
+        nextInt = blockInts;
+    }
+
+    void decl(ParseTreeNode.VarDecl decl) {
+        decl.slots = new ParseTreeNode.Slot[decl.ids.size()];
+        for (int i = 0; i < decl.ids.size(); i++) {
+            ParseTreeNode.Slot slot;
+            if (decl.type == VarType.REF) {
+                slot = new ParseTreeNode.Slot(false, nextRef++, decl.type);
+            } else {
+                slot = new ParseTreeNode.Slot(false, nextInt++, decl.type);
+                intSlots.add(slot);
+            }
+            decl.slots[i] = slot;
+            currentScope().Declare(decl.ids.get(i), slot);
+        }
+        maxRefs = Math.max(maxRefs, nextRef);
+        maxInts = Math.max(maxInts, nextInt);
+    }
+
+    void funcDecl(ParseTreeNode.FuncDecl decl) {
+        // Registered before the body so recursive calls resolve
+        functions.put(decl.id, decl);
+        pushFrame(decl.params);
+        stmtSeq(decl.body);
+        decl.frameSize = popFrame();
+    }
+
+    void stmt(ParseTreeNode.Stmt stmt) {
+        if (stmt instanceof ParseTreeNode.Assign) {
+            assign((ParseTreeNode.Assign) stmt);
+        } else if (stmt instanceof ParseTreeNode.If) {
+            ifStmt((ParseTreeNode.If) (stmt));
+        } else if (stmt instanceof ParseTreeNode.Loop) {
+            loop((ParseTreeNode.Loop) stmt);
+        } else if (stmt instanceof ParseTreeNode.Input) {
+            input((ParseTreeNode.Input) stmt);
+        } else if (stmt instanceof ParseTreeNode.Output) {
+            output((ParseTreeNode.Output) stmt);
+        } else if (stmt instanceof ParseTreeNode.VarDecl) {
+            decl((ParseTreeNode.VarDecl) stmt);
+        } else if (stmt instanceof ParseTreeNode.FuncCall) {
+            funcCall((ParseTreeNode.FuncCall) stmt);
+        }
+    }
+
+    private void funcCall(ParseTreeNode.FuncCall stmt) {
+        stmt.func = functions.get(stmt.id);
+        stmt.liveRefs = nextRef;
+        stmt.args = new ParseTreeNode.Slot[stmt.params.size()];
+        for (int i = 0; i < stmt.params.size(); i++) {
+            stmt.args[i] = currentScope().Get(stmt.params.get(i));
+        }
+    }
+
+    private void output(ParseTreeNode.Output stmt) {
+        expression(stmt.expr);
+    }
+
+    private void input(ParseTreeNode.Input stmt) {
+        stmt.slot = currentScope().Get(stmt.id);
+    }
+
+    private void loop(ParseTreeNode.Loop stmt) {
+        condition(stmt.condition);
+        stmtSeq(stmt.body);
+    }
+
+    private void ifStmt(ParseTreeNode.If stmt) {
+        condition(stmt.condition);
+        stmtSeq(stmt.ifBody);
+        if (stmt.elseBody != null) {
+            stmtSeq(stmt.elseBody);
+        }
+    }
+
+    private void assign(ParseTreeNode.Assign stmt) {
+        stmt.slot = currentScope().Get(stmt.id);
+        if (stmt.exprRHS == null && stmt.idRHS == null) {
+            stmt.liveRefs = nextRef;
+        } else if (stmt.idRHS != null) {
+            stmt.slotRHS = currentScope().Get(stmt.idRHS);
+        } else if (stmt.exprRHS != null) {
+            expression(stmt.exprRHS);
+        }
+    }
+
+    private void condition(ParseTreeNode.Cond condition) {
+        if (condition.cmpr != null)
+            comparison(condition.cmpr);
+        if (condition.cond != null)
+            condition(condition.cond);
+    }
+
+    private void comparison(ParseTreeNode.Cmpr cmpr) {
+        expression(cmpr.lhs);
+        expression(cmpr.rhs);
+    }
+
+    private void expression(ParseTreeNode.Expr expr) {
+        for (var term : expr.terms)
+            term(term);
+    }
+
+    private void term(ParseTreeNode.Term term) {
+        for (var factor : term.factors)
+            factor(factor);
+    }
+
+    private void factor(ParseTreeNode.Factor factor) {
+        if (factor.expr != null) {
+            expression(factor.expr);
+        } else if (factor.id != null) {
+            factor.slot = currentScope().Get(factor.id);
+        }
+    }
+}
@@ -5,15 +5,19 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
 
-class Scanner {
+class Scanner implements TokenSource {
 	
 	private String fileContents;
 	private int line = 1;
+	// Index of the first character of the current line, for columns
+	private int lineStart = 0;
+	private int tokenLine = 1;
 	private int startIndex = 0;
 	private int currentIndex = 0;
 	private Core current;
 	private String ID;
 	private int CONST;
+	private String error;
 
 	private static final HashMap<String, Core> keywords;
 	private static final HashMap<String, Core> specials;
@@ -58,12 +62,24 @@ class Scanner {
 
 	// Constructor should open the file and find the first token
 	Scanner(String filename) throws IOException {
+		this();
 		Path path = Paths.get(filename);
 		fileContents = Files.readString(path, StandardCharsets.US_ASCII);
 		fileContents += "\n"; // ensure there is whitespace at the end of the file. this makes handling EOF easier (only needed in skipWhitespace function)
 		nextToken();
 	}
 
+	private Scanner() {
+	}
+
+	// Scans source text that isn't in a file, the daemon gets programs over a socket
+	static Scanner ofText(String contents) {
+		Scanner scanner = new Scanner();
+		scanner.fileContents = contents + "\n";
+		scanner.nextToken();
+		return scanner;
+	}
+
 	private char currentChar() {
 		return fileContents.charAt(currentIndex);
 	}
@@ -75,7 +91,10 @@ class Scanner {
 	private void skipWhitespace() {
 		char curr = currentChar();
 		while (Character.isWhitespace(curr)) {
-			if (curr == '\n') line++;
+			if (curr == '\n') {
+				line++;
+				lineStart = currentIndex + 1;
+			}
 			if (atEnd()) {
 				current = Core.EOF;
 				break;
@@ -101,12 +120,12 @@ class Scanner {
 			}
 			else {
 				current = Core.ERROR;
-				System.out.println("ERROR (" + line + "): Constants must be in the range 0-1023");	
+				error = "ERROR (" + line + "): Constants must be in the range 0-1023";
 			}
 		}
 		else {
 			current = Core.ERROR;
-			System.out.println("ERROR (" + line + "): Constants can have a maximum of 4 digits");
+			error = "ERROR (" + line + "): Constants can have a maximum of 4 digits";
 		}
 	}
 
@@ -145,7 +164,7 @@ class Scanner {
 		}
 		else {
 			current = Core.ERROR;
-			System.out.println("ERROR (" + line + "): invalid token '" + special + "'");
+			error = "ERROR (" + line + "): invalid token '" + special + "'";
 		}
 	}
 
@@ -157,6 +176,7 @@ class Scanner {
 		}
 
 		startIndex = currentIndex; // store the start of the current token
+		tokenLine = line;
 		char curr = currentChar();
 
 		if (Character.isDigit(curr)) {
@@ -181,10 +201,37 @@ class Scanner {
 		return ID;
 	}
 
+	public String getError() {
+		return error;
+	}
+
 	// If the current token is CONST, return the numerical value of the constant
 	// Otherwise, return value does not matter
 	public int getCONST() {
 		return CONST;
 	}
 
-}
\ No newline at end of file
+	public int getLine() {
+		return tokenLine;
+	}
+
+	public int getColumn() {
+		return startIndex - lineStart + 1;
+	}
+
+	public int getEndColumn() {
+		return currentIndex - lineStart + 1;
+	}
+
+	public int getIndex() {
+		return startIndex;
+	}
+
+	public void rewind(int index, int line, int column) {
+		currentIndex = index;
+		this.line = line;
+		lineStart = index - column + 1;
+		current = null;
+		nextToken();
+	}
+}
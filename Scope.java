@@ -11,6 +11,13 @@ public class Scope<T>
         parent = null;
     }
 
+    // Sized so declaring that many variables never resizes the map
+    public Scope(int declarations)
+    {
+        variables = new HashMap<>(declarations * 4 / 3 + 1);
+        parent = null;
+    }
+
     public T Get(String name)
     {
         T t = variables.get(name);
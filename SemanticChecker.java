@@ -1,10 +1,28 @@
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
+// With more than one thread, once the global declarations and the function names and arities are
+// known, every function body and the main body are checked as separate tasks on a ForkJoinPool. A
+// call may only name a function declared before the body it is in (or that function itself), so each
+// task knows which functions it can see from the index of its body. The error reported is still the
+// first one the sequential checker would hit: the task results are looked at in program order.
 public class SemanticChecker {
+    // Thrown at the first error of a check, a body task stops there
+    static class CheckError extends CoreError {
+        private static final long serialVersionUID = 1L;
+
+        CheckError(String message) {
+            super(message);
+        }
+    }
+
     private static void error(String message) {
-        System.out.println(message);
-        System.exit(1);
+        throw new CheckError(message);
     }
 
     Frame<VarType> currentFrame;
@@ -12,6 +30,10 @@ public class SemanticChecker {
     Scope<VarType> globalScope;
     // key: func name, value: num args
     HashMap<String, Integer> funcDeclsData;
+    // key: func name, value: index of its declaration, for the parallel checker
+    HashMap<String, Integer> funcIndices;
+    // Index of the function body being checked, calls can't see functions declared after it
+    int currentFunction = Integer.MAX_VALUE;
 
     private void pushFrame(List<String> params) {
         Frame<VarType> newFrame = new Frame<>(globalScope, params, VarType.REF, currentFrame);
@@ -22,9 +44,9 @@ public class SemanticChecker {
         currentFrame = currentFrame.parent;
     }
 
-    private void pushScope()
+    private void pushScope(int declarations)
     {
-        currentFrame.pushScope();
+        currentFrame.pushScope(declarations);
     }
 
     private void popScope()
@@ -38,11 +60,88 @@ public class SemanticChecker {
     }
 
     public SemanticChecker(ParseTreeNode.Program root) {
+        this(root, 1);
+    }
+
+    // Throws a CheckError with the first error if the program doesn't pass
+    public SemanticChecker(ParseTreeNode.Program root, int threads) {
         globalFrame = new Frame<>();
         currentFrame = globalFrame;
         globalScope = globalFrame.currentScope;
         funcDeclsData = new HashMap<>();
-        program(root);
+        funcIndices = new HashMap<>();
+        if (threads > 1) {
+            parallelProgram(root, threads);
+        } else {
+            program(root);
+        }
+    }
+
+    // Checker for one body task, it shares the declarations that are already checked
+    private SemanticChecker(SemanticChecker shared, int function) {
+        globalFrame = shared.globalFrame;
+        currentFrame = globalFrame;
+        globalScope = shared.globalScope;
+        funcDeclsData = shared.funcDeclsData;
+        funcIndices = shared.funcIndices;
+        currentFunction = function;
+    }
+
+    private void parallelProgram(ParseTreeNode.Program program, int threads) {
+        for (ParseTreeNode.VarDecl decl : program.declSeq.declSeq) {
+            decl(decl);
+        }
+
+        // Function headers in order, any error in one stops the check before its body
+        var functions = program.declSeq.funcDeclSeq;
+        String[] headerErrors = new String[functions.size()];
+        for (int i = 0; i < functions.size(); i++) {
+            try {
+                funcHeader(functions.get(i));
+                funcIndices.put(functions.get(i).id, i);
+            } catch (CheckError e) {
+                headerErrors[i] = e.getMessage();
+            }
+        }
+
+        var tasks = new ArrayList<Callable<String>>();
+        for (int i = 0; i < functions.size(); i++) {
+            var decl = functions.get(i);
+            int index = i;
+            tasks.add(() -> new SemanticChecker(this, index).bodyError(decl.params, decl.body));
+        }
+        tasks.add(() -> new SemanticChecker(this, Integer.MAX_VALUE).bodyError(null, program.stmtSeq));
+
+        var pool = new ForkJoinPool(threads);
+        try {
+            List<Future<String>> results = pool.invokeAll(tasks);
+            for (int i = 0; i < results.size(); i++) {
+                if (i < headerErrors.length && headerErrors[i] != null) {
+                    error(headerErrors[i]);
+                }
+                String bodyError = results.get(i).get();
+                if (bodyError != null) {
+                    error(bodyError);
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // First error in a function body (params are its params) or the main body (params null), or null
+    private String bodyError(List<String> params, List<ParseTreeNode.Stmt> body) {
+        try {
+            if (params != null) {
+                pushFrame(params);
+            }
+            stmtSeq(body);
+            return null;
+        } catch (CheckError e) {
+            return e.getMessage();
+        }
     }
 
     void program(ParseTreeNode.Program program) {
@@ -61,11 +160,13 @@ public class SemanticChecker {
     }
 
     void stmtSeq(List<ParseTreeNode.Stmt> stmts) {
-        pushScope();
+        // A block that declares nothing can't change what a name means, it shares the enclosing scope
+        int declarations = ParseTreeNode.declarations(stmts);
+        if (declarations > 0) pushScope(declarations);
         for (ParseTreeNode.Stmt stmt : stmts) {
             stmt(stmt);
         }
-        popScope();
+        if (declarations > 0) popScope();
     }
 
     void decl(ParseTreeNode.VarDecl decl) {
@@ -79,6 +180,14 @@ public class SemanticChecker {
     }
 
     void funcDecl(ParseTreeNode.FuncDecl decl) {
+        funcHeader(decl);
+        pushFrame(decl.params);
+        stmtSeq(decl.body);
+        popFrame();
+    }
+
+    // Name and params of a function, it is callable once they pass
+    void funcHeader(ParseTreeNode.FuncDecl decl) {
         if (funcDeclsData.containsKey(decl.id)) {
             error("Function with name " + decl.id + " can't be declared twice.");
         } else {
@@ -92,9 +201,6 @@ public class SemanticChecker {
             }
             // TODO: maybe need to check if params is not null
             funcDeclsData.put(decl.id, decl.params.size());
-            pushFrame(decl.params);
-            stmtSeq(decl.body);
-            popFrame();
         }
     }
 
@@ -118,6 +224,11 @@ public class SemanticChecker {
 
     private void funcCall(ParseTreeNode.FuncCall stmt) {
         var funcNumParams = funcDeclsData.get(stmt.id);
+        // A body task sees every header, but only functions declared up to its own
+        if (funcNumParams != null && currentFunction != Integer.MAX_VALUE && funcIndices.get(stmt.id) > currentFunction)
+        {
+            funcNumParams = null;
+        }
         if (funcNumParams == null)
         {
             error("Attempting to call undeclared function '" + stmt.id + "'.");
@@ -126,6 +237,13 @@ public class SemanticChecker {
         {
             error("Function '" + stmt.id + "' expects " + funcNumParams + " parameters.");
         }
+        for (String arg : stmt.params)
+        {
+            if (currentScope().Get(arg) != VarType.REF)
+            {
+                error("Attempting to pass an int or undeclared variable '" + arg + "' to function '" + stmt.id + "'.");
+            }
+        }
     }
 
     private void output(ParseTreeNode.Output stmt) {
@@ -192,15 +310,13 @@ public class SemanticChecker {
     }
 
     private void expression(ParseTreeNode.Expr expr) {
-        term(expr.lhs);
-        if (expr.rhs != null)
-            expression(expr.rhs);
+        for (var term : expr.terms)
+            term(term);
     }
 
     private void term(ParseTreeNode.Term term) {
-        factor(term.lhs);
-        if (term.rhs != null)
-            term(term.rhs);
+        for (var factor : term.factors)
+            factor(factor);
     }
 
     private void factor(ParseTreeNode.Factor factor) {
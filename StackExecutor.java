@@ -0,0 +1,116 @@
+import java.util.Arrays;
+import java.util.List;
+
+// The tree engine without Java recursion (--engine=stack). Blocks that are being executed are kept on
+// an explicit stack of their statement list and the index of their next statement, so an if, a loop
+// iteration or a call pushes an entry instead of a Java frame. Calls use the Executor's frame stack,
+// so recursion depth is only limited by memory and --max-depth, and the engine runs on the default
+// thread stack, or a smaller one, no matter how deep the program recurses. Expressions are still
+// evaluated recursively, but they only nest as deep as their parentheses in the source.
+public class StackExecutor extends Executor
+{
+    // What happens when a block runs out of statements
+    static final int BLOCK = 0;
+    // The body of the loop in loops[] at the same index, its condition decides whether it runs again
+    static final int LOOP = 1;
+    // A function body, its frame is popped
+    static final int CALL = 2;
+
+    List<ParseTreeNode.Stmt>[] blocks;
+    int[] next;
+    int[] kinds;
+    ParseTreeNode.Loop[] loops;
+    int top;
+
+    // A generic array can't be created directly, only statement lists are ever stored in this one
+    @SuppressWarnings("unchecked")
+    StackExecutor(ParseTreeNode.Program p, CoreRuntime runtime)
+    {
+        super(p, runtime);
+        blocks = (List<ParseTreeNode.Stmt>[])new List<?>[64];
+        next = new int[64];
+        kinds = new int[64];
+        loops = new ParseTreeNode.Loop[64];
+        top = -1;
+    }
+
+    @Override
+    void run()
+    {
+        push(program.stmtSeq, BLOCK, null);
+        while (top >= 0)
+        {
+            var stmts = blocks[top];
+            int index = next[top];
+            if (index == stmts.size())
+            {
+                endBlock();
+                continue;
+            }
+            next[top] = index + 1;
+
+            var stmt = stmts.get(index);
+            if (stmt instanceof ParseTreeNode.If)
+            {
+                var ifStmt = (ParseTreeNode.If)stmt;
+                if (condition(ifStmt.condition))
+                {
+                    push(ifStmt.ifBody, BLOCK, null);
+                }
+                else if (ifStmt.elseBody != null)
+                {
+                    push(ifStmt.elseBody, BLOCK, null);
+                }
+            }
+            else if (stmt instanceof ParseTreeNode.Loop)
+            {
+                var loop = (ParseTreeNode.Loop)stmt;
+                if (condition(loop.condition))
+                {
+                    push(loop.body, LOOP, loop);
+                }
+            }
+            else if (stmt instanceof ParseTreeNode.FuncCall)
+            {
+                var call = (ParseTreeNode.FuncCall)stmt;
+                liveRefs = call.liveRefs;
+                pushFrame(call);
+                push(call.func.body, CALL, null);
+            }
+            else
+            {
+                stmt(stmt);
+            }
+        }
+    }
+
+    private void endBlock()
+    {
+        if (kinds[top] == LOOP && condition(loops[top].condition))
+        {
+            next[top] = 0;
+            return;
+        }
+        if (kinds[top] == CALL)
+        {
+            popFrame();
+        }
+        top--;
+    }
+
+    private void push(List<ParseTreeNode.Stmt> stmts, int kind, ParseTreeNode.Loop loop)
+    {
+        top++;
+        if (top == blocks.length)
+        {
+            blocks = Arrays.copyOf(blocks, top * 2);
+            next = Arrays.copyOf(next, top * 2);
+            kinds = Arrays.copyOf(kinds, top * 2);
+            loops = Arrays.copyOf(loops, top * 2);
+        }
+        blocks[top] = stmts;
+        next[top] = 0;
+        kinds[top] = kind;
+        loops[top] = loop;
+    }
+}
@@ -0,0 +1,31 @@
+// The tokens the Parser reads, with their positions. Scanner reads the file into a String, MappedScanner
+// lexes the bytes of a memory mapped file directly.
+interface TokenSource {
+	// Advances to the next token
+	void nextToken();
+
+	Core currentToken();
+
+	// Name of the current token if it is an ID
+	String getID();
+
+	// Value of the current token if it is a CONST
+	int getCONST();
+
+	// What is wrong with the current token if it is an ERROR, like "ERROR (3): invalid token '$'"
+	String getError();
+
+	// Line and column (both from 1) where the current token starts
+	int getLine();
+
+	int getColumn();
+
+	// Column just past the current token's last character, tokens never span lines
+	int getEndColumn();
+
+	// Index in the source where the current token starts
+	int getIndex();
+
+	// Goes back to the token that starts at index, on line and column, and makes it the current token
+	void rewind(int index, int line, int column);
+}
@@ -0,0 +1,684 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+// Binary form of a checked and resolved tree, read back by the ProgramCache instead of running the
+// front end. Numbers are varints, spans are deltas, names are written once and then referred to by
+// their index in a string table, and a slot is one varint holding its index, global bit and type.
+// Function headers come before any body so a call can name its function by index. The header holds
+// the SHA-256 of the rest of the file, so a file that was damaged on disk fails to read instead of
+// giving a different program.
+public class TreeFile
+{
+    static final int MAGIC = 0xC0DE7EE5;
+    static final int FORMAT = 2;
+    static final int DIGEST_SIZE = 32;
+
+    static final int ASSIGN = 0;
+    static final int IF = 1;
+    static final int LOOP = 2;
+    static final int INPUT = 3;
+    static final int OUTPUT = 4;
+    static final int DECL = 5;
+    static final int CALL = 6;
+
+    static final int ID = 0;
+    static final int PARENS = 1;
+    static final int CONST = 2;
+
+    static final Core[] TOKENS = Core.values();
+
+    DataOutputStream out;
+    // The whole file is read into data first, reading through a stream a byte at a time is several times slower
+    byte[] data;
+    int position;
+    HashMap<String, Integer> stringIndices = new HashMap<>();
+    List<String> strings = new ArrayList<>();
+    IdentityHashMap<ParseTreeNode.FuncDecl, Integer> functionIndices = new IdentityHashMap<>();
+    List<ParseTreeNode.FuncDecl> functions = new ArrayList<>();
+    int lastStart;
+    // Globals of the program and the frame size of the body being read, a slot past them is rejected
+    int numGlobals;
+    int frameSize;
+
+    // Bump FORMAT when anything written here changes. The tree's meaning, the Resolver's slot layout
+    // and the Optimizer are covered by the version the caller passes in. The ordinals of Core and
+    // VarType are written too, the ProgramCache folds both enums into its key.
+    static void write(ParseTreeNode.Program p, OutputStream stream, int version) throws IOException
+    {
+        var file = new TreeFile();
+        var payload = new ByteArrayOutputStream();
+        file.out = new DataOutputStream(payload);
+        file.program(p);
+        byte[] bytes = payload.toByteArray();
+
+        var header = new DataOutputStream(stream);
+        header.writeInt(MAGIC);
+        header.writeInt(FORMAT);
+        header.writeInt(version);
+        header.write(digest().digest(bytes));
+        header.write(bytes);
+        header.flush();
+    }
+
+    static ParseTreeNode.Program read(InputStream stream, int version) throws IOException
+    {
+        var file = new TreeFile();
+        file.data = stream.readAllBytes();
+        try
+        {
+            if (file.readInt() != MAGIC || file.readInt() != FORMAT || file.readInt() != version)
+            {
+                throw new IOException("Not a tree file of this interpreter version.");
+            }
+            byte[] expected = Arrays.copyOfRange(file.data, file.position, file.position + DIGEST_SIZE);
+            file.position += DIGEST_SIZE;
+            var digest = digest();
+            digest.update(file.data, file.position, file.data.length - file.position);
+            if (!MessageDigest.isEqual(expected, digest.digest()))
+            {
+                throw new IOException("Tree file damaged.");
+            }
+            return file.readProgram();
+        }
+        catch (ArrayIndexOutOfBoundsException e)
+        {
+            throw new IOException("Tree file cut short.");
+        }
+    }
+
+    static MessageDigest digest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // Every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void program(ParseTreeNode.Program p) throws IOException
+    {
+        span(p);
+        number(p.numGlobals);
+        number(p.numRefGlobals);
+        number(p.frameSize);
+        number(p.declSeq.declSeq.size());
+        for (var decl : p.declSeq.declSeq)
+        {
+            decl(decl);
+        }
+        number(p.declSeq.funcDeclSeq.size());
+        for (var func : p.declSeq.funcDeclSeq)
+        {
+            functionIndices.put(func, functionIndices.size());
+            span(func);
+            string(func.id);
+            strings(func.params);
+            number(func.frameSize);
+        }
+        for (var func : p.declSeq.funcDeclSeq)
+        {
+            stmtSeq(func.body);
+        }
+        stmtSeq(p.stmtSeq);
+    }
+
+    private ParseTreeNode.Program readProgram() throws IOException
+    {
+        var p = new ParseTreeNode.Program();
+        p.span = readSpan();
+        p.numGlobals = readNumber();
+        p.numRefGlobals = readNumber();
+        p.frameSize = readNumber();
+        numGlobals = p.numGlobals;
+        p.declSeq = new ParseTreeNode.DeclSeq();
+        // The global declarations have no frame, their slots are all global
+        frameSize = 0;
+        int numDecls = readCount();
+        p.declSeq.declSeq = new ArrayList<>(numDecls);
+        for (int i = 0; i < numDecls; i++)
+        {
+            p.declSeq.declSeq.add(readDecl());
+        }
+        int numFunctions = readCount();
+        p.declSeq.funcDeclSeq = new ArrayList<>(numFunctions);
+        for (int i = 0; i < numFunctions; i++)
+        {
+            var func = new ParseTreeNode.FuncDecl();
+            func.span = readSpan();
+            func.id = readString();
+            func.params = readStrings();
+            func.frameSize = readNumber();
+            functions.add(func);
+            p.declSeq.funcDeclSeq.add(func);
+        }
+        for (var func : functions)
+        {
+            frameSize = func.frameSize;
+            func.body = readStmtSeq();
+        }
+        frameSize = p.frameSize;
+        p.stmtSeq = readStmtSeq();
+        return p;
+    }
+
+    private void stmtSeq(List<ParseTreeNode.Stmt> stmts) throws IOException
+    {
+        number(stmts.size());
+        for (var stmt : stmts)
+        {
+            stmt(stmt);
+        }
+    }
+
+    private List<ParseTreeNode.Stmt> readStmtSeq() throws IOException
+    {
+        int size = readCount();
+        var stmts = new ArrayList<ParseTreeNode.Stmt>(size);
+        for (int i = 0; i < size; i++)
+        {
+            stmts.add(readStmt());
+        }
+        return stmts;
+    }
+
+    private void stmt(ParseTreeNode.Stmt stmt) throws IOException
+    {
+        if (stmt instanceof ParseTreeNode.Assign)
+        {
+            var assign = (ParseTreeNode.Assign)stmt;
+            out.writeByte(ASSIGN);
+            span(stmt);
+            string(assign.id);
+            slot(assign.slot);
+            out.writeBoolean(assign.exprRHS != null);
+            if (assign.exprRHS != null)
+            {
+                expr(assign.exprRHS);
+            }
+            string(assign.idRHS);
+            slot(assign.slotRHS);
+            number(assign.liveRefs);
+        }
+        else if (stmt instanceof ParseTreeNode.If)
+        {
+            var ifStmt = (ParseTreeNode.If)stmt;
+            out.writeByte(IF);
+            span(stmt);
+            condition(ifStmt.condition);
+            stmtSeq(ifStmt.ifBody);
+            out.writeBoolean(ifStmt.elseBody != null);
+            if (ifStmt.elseBody != null)
+            {
+                stmtSeq(ifStmt.elseBody);
+            }
+        }
+        else if (stmt instanceof ParseTreeNode.Loop)
+        {
+            var loop = (ParseTreeNode.Loop)stmt;
+            out.writeByte(LOOP);
+            span(stmt);
+            condition(loop.condition);
+            stmtSeq(loop.body);
+        }
+        else if (stmt instanceof ParseTreeNode.Input)
+        {
+            var input = (ParseTreeNode.Input)stmt;
+            out.writeByte(INPUT);
+            span(stmt);
+            string(input.id);
+            slot(input.slot);
+        }
+        else if (stmt instanceof ParseTreeNode.Output)
+        {
+            out.writeByte(OUTPUT);
+            span(stmt);
+            expr(((ParseTreeNode.Output)stmt).expr);
+        }
+        else if (stmt instanceof ParseTreeNode.VarDecl)
+        {
+            out.writeByte(DECL);
+            decl((ParseTreeNode.VarDecl)stmt);
+        }
+        else
+        {
+            var call = (ParseTreeNode.FuncCall)stmt;
+            out.writeByte(CALL);
+            span(stmt);
+            string(call.id);
+            strings(call.params);
+            number(functionIndices.get(call.func));
+            for (var arg : call.args)
+            {
+                slot(arg);
+            }
+            number(call.liveRefs);
+        }
+    }
+
+    private ParseTreeNode.Stmt readStmt() throws IOException
+    {
+        int kind = readByte();
+        if (kind == DECL)
+        {
+            return readDecl();
+        }
+        long span = readSpan();
+        ParseTreeNode.Stmt stmt;
+        if (kind == ASSIGN)
+        {
+            var assign = new ParseTreeNode.Assign();
+            assign.id = readString();
+            assign.slot = readSlot();
+            if (readByte() != 0)
+            {
+                assign.exprRHS = readExpr();
+            }
+            assign.idRHS = readString();
+            assign.slotRHS = readSlot();
+            assign.liveRefs = readNumber();
+            stmt = assign;
+        }
+        else if (kind == IF)
+        {
+            var ifStmt = new ParseTreeNode.If();
+            ifStmt.condition = readCondition();
+            ifStmt.ifBody = readStmtSeq();
+            if (readByte() != 0)
+            {
+                ifStmt.elseBody = readStmtSeq();
+            }
+            stmt = ifStmt;
+        }
+        else if (kind == LOOP)
+        {
+            var loop = new ParseTreeNode.Loop();
+            loop.condition = readCondition();
+            loop.body = readStmtSeq();
+            stmt = loop;
+        }
+        else if (kind == INPUT)
+        {
+            var input = new ParseTreeNode.Input();
+            input.id = readString();
+            input.slot = readSlot();
+            stmt = input;
+        }
+        else if (kind == OUTPUT)
+        {
+            var output = new ParseTreeNode.Output();
+            output.expr = readExpr();
+            stmt = output;
+        }
+        else if (kind == CALL)
+        {
+            var call = new ParseTreeNode.FuncCall();
+            call.id = readString();
+            call.params = readStrings();
+            int index = readNumber();
+            if (index < 0 || index >= functions.size())
+            {
+                throw new IOException("Call to function " + index + " of " + functions.size() + ".");
+            }
+            call.func = functions.get(index);
+            call.args = new ParseTreeNode.Slot[call.params.size()];
+            for (int i = 0; i < call.args.length; i++)
+            {
+                call.args[i] = readSlot();
+            }
+            call.liveRefs = readNumber();
+            stmt = call;
+        }
+        else
+        {
+            throw new IOException("Unknown statement kind " + kind + ".");
+        }
+        stmt.span = span;
+        return stmt;
+    }
+
+    private void decl(ParseTreeNode.VarDecl decl) throws IOException
+    {
+        span(decl);
+        out.writeByte(decl.type.ordinal());
+        strings(decl.ids);
+        for (var slot : decl.slots)
+        {
+            slot(slot);
+        }
+    }
+
+    private ParseTreeNode.VarDecl readDecl() throws IOException
+    {
+        var decl = new ParseTreeNode.VarDecl();
+        decl.span = readSpan();
+        decl.type = readByte() == VarType.REF.ordinal() ? VarType.REF : VarType.INT;
+        decl.ids = readStrings();
+        decl.slots = new ParseTreeNode.Slot[decl.ids.size()];
+        for (int i = 0; i < decl.slots.length; i++)
+        {
+            decl.slots[i] = readSlot();
+        }
+        return decl;
+    }
+
+    // A condition is a comparison, a negated condition or a comparison or'ed with a condition, the
+    // first byte says which of the two fields are there
+    private void condition(ParseTreeNode.Cond cond) throws IOException
+    {
+        span(cond);
+        out.writeByte((cond.cmpr != null ? 1 : 0) | (cond.cond != null ? 2 : 0));
+        if (cond.cmpr != null)
+        {
+            span(cond.cmpr);
+            expr(cond.cmpr.lhs);
+            out.writeByte(cond.cmpr.comparison.ordinal());
+            expr(cond.cmpr.rhs);
+        }
+        if (cond.cond != null)
+        {
+            condition(cond.cond);
+        }
+    }
+
+    private ParseTreeNode.Cond readCondition() throws IOException
+    {
+        var cond = new ParseTreeNode.Cond();
+        cond.span = readSpan();
+        int fields = readByte();
+        if ((fields & 1) != 0)
+        {
+            cond.cmpr = new ParseTreeNode.Cmpr();
+            cond.cmpr.span = readSpan();
+            cond.cmpr.lhs = readExpr();
+            cond.cmpr.comparison = readToken();
+            cond.cmpr.rhs = readExpr();
+        }
+        if ((fields & 2) != 0)
+        {
+            cond.cond = readCondition();
+        }
+        return cond;
+    }
+
+    private void expr(ParseTreeNode.Expr expr) throws IOException
+    {
+        span(expr);
+        number(expr.terms.length);
+        for (var term : expr.terms)
+        {
+            span(term);
+            number(term.factors.length);
+            for (var factor : term.factors)
+            {
+                factor(factor);
+            }
+        }
+        for (var operator : expr.operators)
+        {
+            out.writeByte(operator.ordinal());
+        }
+    }
+
+    private ParseTreeNode.Expr readExpr() throws IOException
+    {
+        var expr = new ParseTreeNode.Expr();
+        expr.span = readSpan();
+        expr.terms = new ParseTreeNode.Term[readCount()];
+        for (int i = 0; i < expr.terms.length; i++)
+        {
+            var term = new ParseTreeNode.Term();
+            term.span = readSpan();
+            term.factors = new ParseTreeNode.Factor[readCount()];
+            for (int j = 0; j < term.factors.length; j++)
+            {
+                term.factors[j] = readFactor();
+            }
+            expr.terms[i] = term;
+        }
+        expr.operators = new Core[Math.max(expr.terms.length - 1, 0)];
+        for (int i = 0; i < expr.operators.length; i++)
+        {
+            expr.operators[i] = readToken();
+        }
+        return expr;
+    }
+
+    private void factor(ParseTreeNode.Factor factor) throws IOException
+    {
+        span(factor);
+        if (factor.id != null)
+        {
+            out.writeByte(ID);
+            string(factor.id);
+            slot(factor.slot);
+        }
+        else if (factor.expr != null)
+        {
+            out.writeByte(PARENS);
+            expr(factor.expr);
+        }
+        else
+        {
+            // Folded constants can be negative
+            out.writeByte(CONST);
+            signed(factor.CONST);
+        }
+    }
+
+    private ParseTreeNode.Factor readFactor() throws IOException
+    {
+        var factor = new ParseTreeNode.Factor();
+        factor.span = readSpan();
+        int kind = readByte();
+        if (kind == ID)
+        {
+            factor.id = readString();
+            factor.slot = readSlot();
+        }
+        else if (kind == PARENS)
+        {
+            factor.expr = readExpr();
+        }
+        else
+        {
+            factor.CONST = readSigned();
+        }
+        return factor;
+    }
+
+    // 0 for no slot, otherwise the index, the global bit and the type bit plus one
+    private void slot(ParseTreeNode.Slot slot) throws IOException
+    {
+        if (slot == null)
+        {
+            number(0);
+            return;
+        }
+        number((slot.index << 2 | (slot.global ? 2 : 0) | (slot.type == VarType.REF ? 1 : 0)) + 1);
+    }
+
+    private ParseTreeNode.Slot readSlot() throws IOException
+    {
+        int value = readNumber();
+        if (value == 0)
+        {
+            return null;
+        }
+        value--;
+        int index = value >>> 2;
+        int size = (value & 2) != 0 ? numGlobals : frameSize;
+        if (index >= size)
+        {
+            throw new IOException("Slot " + index + " of " + size + ".");
+        }
+        return new ParseTreeNode.Slot((value & 2) != 0, index, (value & 1) != 0 ? VarType.REF : VarType.INT);
+    }
+
+    // 0 for no name, 1 for a new name that follows, otherwise the index of an earlier name plus 2
+    private void string(String s) throws IOException
+    {
+        if (s == null)
+        {
+            number(0);
+            return;
+        }
+        Integer index = stringIndices.get(s);
+        if (index != null)
+        {
+            number(index + 2);
+            return;
+        }
+        stringIndices.put(s, stringIndices.size());
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        number(1);
+        number(bytes.length);
+        out.write(bytes);
+    }
+
+    private String readString() throws IOException
+    {
+        int value = readNumber();
+        if (value == 0)
+        {
+            return null;
+        }
+        if (value == 1)
+        {
+            int length = readCount();
+            String s = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+            strings.add(s);
+            return s;
+        }
+        if (value < 0 || value - 2 >= strings.size())
+        {
+            throw new IOException("Name " + (value - 2) + " of " + strings.size() + ".");
+        }
+        return strings.get(value - 2);
+    }
+
+    private void strings(List<String> list) throws IOException
+    {
+        number(list.size());
+        for (String s : list)
+        {
+            string(s);
+        }
+    }
+
+    private List<String> readStrings() throws IOException
+    {
+        int size = readCount();
+        var list = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++)
+        {
+            list.add(readString());
+        }
+        return list;
+    }
+
+    private Core readToken() throws IOException
+    {
+        int ordinal = readByte();
+        if (ordinal < 0 || ordinal >= TOKENS.length)
+        {
+            throw new IOException("Unknown token " + ordinal + ".");
+        }
+        return TOKENS[ordinal];
+    }
+
+    // The start as the difference from the last start written and the end as the difference from the
+    // start, nodes mostly follow each other on a line so both take a byte or two
+    private void span(ParseTreeNode node) throws IOException
+    {
+        int start = (int)(node.span >>> 32);
+        signed(start - lastStart);
+        signed((int)node.span - start);
+        lastStart = start;
+    }
+
+    private long readSpan() throws IOException
+    {
+        int start = lastStart + readSigned();
+        lastStart = start;
+        return ParseTreeNode.span(start, start + readSigned());
+    }
+
+    private void signed(int value) throws IOException
+    {
+        number(value << 1 ^ value >> 31);
+    }
+
+    private int readSigned() throws IOException
+    {
+        int zigzag = readNumber();
+        return zigzag >>> 1 ^ -(zigzag & 1);
+    }
+
+    private int readByte()
+    {
+        return data[position++];
+    }
+
+    private int readInt()
+    {
+        int value = 0;
+        for (int i = 0; i < 4; i++)
+        {
+            value = value << 8 | readByte() & 0xFF;
+        }
+        return value;
+    }
+
+    // The size of a list or a name, every element takes at least a byte so it can't be more than what's left
+    private int readCount() throws IOException
+    {
+        int count = readNumber();
+        if (count < 0 || count > data.length - position)
+        {
+            throw new IOException("Tree file cut short.");
+        }
+        return count;
+    }
+
+    // Seven bits per byte, low bits first, the top bit is set on every byte but the last
+    private void number(int value) throws IOException
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            out.writeByte(value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private int readNumber() throws IOException
+    {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7)
+        {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return value;
+            }
+        }
+        throw new IOException("Number too long.");
+    }
+}
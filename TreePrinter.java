@@ -0,0 +1,144 @@
+import java.io.PrintStream;
+import java.util.List;
+
+// Prints a tree back as Core source, for --dump-tree. Parentheses are printed where the tree has a
+// parenthesized factor, so what the Optimizer did to an expression can be read off directly.
+public class TreePrinter
+{
+    PrintStream out;
+
+    TreePrinter(PrintStream out)
+    {
+        this.out = out;
+    }
+
+    void program(ParseTreeNode.Program p)
+    {
+        out.println("program");
+        for (var decl : p.declSeq.declSeq)
+        {
+            stmt(decl, 1);
+        }
+        for (var func : p.declSeq.funcDeclSeq)
+        {
+            line(1, func.id + "(ref " + String.join(", ", func.params) + ") begin");
+            stmtSeq(func.body, 2);
+            line(1, "endfunc");
+        }
+        out.println("begin");
+        stmtSeq(p.stmtSeq, 1);
+        out.println("end");
+    }
+
+    private void line(int indent, String text)
+    {
+        out.println("\t".repeat(indent) + text);
+    }
+
+    private void stmtSeq(List<ParseTreeNode.Stmt> stmts, int indent)
+    {
+        for (var stmt : stmts)
+        {
+            stmt(stmt, indent);
+        }
+    }
+
+    private void stmt(ParseTreeNode.Stmt stmt, int indent)
+    {
+        if (stmt instanceof ParseTreeNode.Assign)
+        {
+            var assign = (ParseTreeNode.Assign)stmt;
+            String rhs;
+            if (assign.exprRHS != null) rhs = expr(assign.exprRHS);
+            else if (assign.idRHS != null) rhs = "ref " + assign.idRHS;
+            else rhs = "new";
+            line(indent, assign.id + " = " + rhs + ";");
+        }
+        else if (stmt instanceof ParseTreeNode.If)
+        {
+            var ifStmt = (ParseTreeNode.If)stmt;
+            line(indent, "if " + condition(ifStmt.condition) + " then");
+            stmtSeq(ifStmt.ifBody, indent + 1);
+            if (ifStmt.elseBody != null)
+            {
+                line(indent, "else");
+                stmtSeq(ifStmt.elseBody, indent + 1);
+            }
+            line(indent, "endif");
+        }
+        else if (stmt instanceof ParseTreeNode.Loop)
+        {
+            var loop = (ParseTreeNode.Loop)stmt;
+            line(indent, "while " + condition(loop.condition) + " begin");
+            stmtSeq(loop.body, indent + 1);
+            line(indent, "endwhile");
+        }
+        else if (stmt instanceof ParseTreeNode.Input)
+        {
+            line(indent, "input " + ((ParseTreeNode.Input)stmt).id + ";");
+        }
+        else if (stmt instanceof ParseTreeNode.Output)
+        {
+            line(indent, "output " + expr(((ParseTreeNode.Output)stmt).expr) + ";");
+        }
+        else if (stmt instanceof ParseTreeNode.VarDecl)
+        {
+            var decl = (ParseTreeNode.VarDecl)stmt;
+            line(indent, (decl.type == VarType.INT ? "int " : "ref ") + String.join(", ", decl.ids) + ";");
+        }
+        else
+        {
+            var call = (ParseTreeNode.FuncCall)stmt;
+            line(indent, "begin " + call.id + "(" + String.join(", ", call.params) + ");");
+        }
+    }
+
+    private String condition(ParseTreeNode.Cond cond)
+    {
+        if (cond.cond == null) return comparison(cond.cmpr);
+        else if (cond.cmpr == null) return "!(" + condition(cond.cond) + ")";
+        else return comparison(cond.cmpr) + " or " + condition(cond.cond);
+    }
+
+    private String comparison(ParseTreeNode.Cmpr cmpr)
+    {
+        String operator;
+        if (cmpr.comparison == Core.EQUAL) operator = " == ";
+        else if (cmpr.comparison == Core.LESS) operator = " < ";
+        else operator = " <= ";
+        return expr(cmpr.lhs) + operator + expr(cmpr.rhs);
+    }
+
+    private String expr(ParseTreeNode.Expr expr)
+    {
+        var text = new StringBuilder();
+        for (int i = 0; i < expr.terms.length; i++)
+        {
+            if (i > 0) text.append(expr.operators[i - 1] == Core.ADD ? " + " : " - ");
+            var factors = expr.terms[i].factors;
+            for (int j = 0; j < factors.length; j++)
+            {
+                if (j > 0) text.append(" * ");
+                text.append(factor(factors[j]));
+            }
+        }
+        return text.toString();
+    }
+
+    private String factor(ParseTreeNode.Factor factor)
+    {
+        if (factor.id != null) return factor.id;
+        else if (factor.expr != null) return "(" + expr(factor.expr) + ")";
+        else return constant(factor.CONST);
+    }
+
+    // Folded constants can be negative or past 1023, which the scanner wouldn't accept, so those are
+    // printed as an expression that computes them: -3 is (0 - 3) and 5000 is (5 * 1000 + 0). The
+    // arithmetic wraps, so Integer.MIN_VALUE comes out right as 0 - 2147483648.
+    private static String constant(long value)
+    {
+        if (value < 0) return "(0 - " + constant(-value) + ")";
+        else if (value <= 1023) return Long.toString(value);
+        else return "(" + constant(value / 1000) + " * 1000 + " + value % 1000 + ")";
+    }
+}
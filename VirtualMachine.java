@@ -0,0 +1,201 @@
+import java.util.Arrays;
+
+// Runs a BytecodeProgram in a single dispatch loop. All frames live in one int[] of registers, a
+// call only moves the frame pointer past the caller's registers, so calls never recurse in Java.
+public class VirtualMachine implements Heap.Roots {
+    BytecodeProgram program;
+    CoreRuntime runtime;
+    int[] registers;
+    // Saved state of the callers, indexed by call depth
+    int[] returnPc;
+    int[] savedFp;
+    int[] savedFunction;
+    int[] savedLiveRefs;
+    // Where the VM is when it allocates, for the garbage collector
+    int fp;
+    int depth;
+    int liveRefs;
+
+    VirtualMachine(BytecodeProgram program, CoreRuntime runtime)
+    {
+        this.program = program;
+        this.runtime = runtime;
+        registers = new int[1024];
+        returnPc = new int[64];
+        savedFp = new int[64];
+        savedFunction = new int[64];
+        savedLiveRefs = new int[64];
+        runtime.setRoots(this);
+    }
+
+    void run()
+    {
+        final int[] code = program.code;
+        final long[] spans = program.spans;
+        final int[] globals = runtime.globals;
+        int function = program.mainFunction;
+        int pc = program.functionStart[function];
+        int fp = 0;
+        int depth = 0;
+        int[] r = ensureRegisters(program.functionRegisters[function]);
+
+        while (true)
+        {
+            switch (code[pc])
+            {
+                case BytecodeProgram.CONST:
+                    r[fp + code[pc + 1]] = code[pc + 2];
+                    pc += 3;
+                    break;
+                case BytecodeProgram.MOVE:
+                    r[fp + code[pc + 1]] = r[fp + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case BytecodeProgram.LOAD_GLOBAL:
+                    r[fp + code[pc + 1]] = globals[code[pc + 2]];
+                    pc += 3;
+                    break;
+                case BytecodeProgram.STORE_GLOBAL:
+                    globals[code[pc + 1]] = r[fp + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case BytecodeProgram.ADD:
+                    r[fp + code[pc + 1]] = r[fp + code[pc + 2]] + r[fp + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case BytecodeProgram.SUB:
+                    r[fp + code[pc + 1]] = r[fp + code[pc + 2]] - r[fp + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case BytecodeProgram.MUL:
+                    r[fp + code[pc + 1]] = r[fp + code[pc + 2]] * r[fp + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case BytecodeProgram.JUMP:
+                    pc = code[pc + 1];
+                    break;
+                case BytecodeProgram.JLT:
+                    pc = r[fp + code[pc + 1]] < r[fp + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case BytecodeProgram.JLE:
+                    pc = r[fp + code[pc + 1]] <= r[fp + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case BytecodeProgram.JEQ:
+                    pc = r[fp + code[pc + 1]] == r[fp + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case BytecodeProgram.JGE:
+                    pc = r[fp + code[pc + 1]] >= r[fp + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case BytecodeProgram.JGT:
+                    pc = r[fp + code[pc + 1]] > r[fp + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case BytecodeProgram.JNE:
+                    pc = r[fp + code[pc + 1]] != r[fp + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case BytecodeProgram.NEW:
+                    this.fp = fp;
+                    this.depth = depth;
+                    this.liveRefs = code[pc + 2];
+                    r[fp + code[pc + 1]] = runtime.newHeapVar(spans[code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case BytecodeProgram.HEAP_LOAD:
+                    r[fp + code[pc + 1]] = runtime.heapLoad(r[fp + code[pc + 2]], spans[code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case BytecodeProgram.HEAP_STORE:
+                    runtime.heapStore(r[fp + code[pc + 1]], r[fp + code[pc + 2]], spans[code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case BytecodeProgram.NULL_CHECK:
+                    if (r[fp + code[pc + 1]] == CoreRuntime.NULL_REF)
+                    {
+                        runtime.error(spans[code[pc + 2]], "Can't assign a value to a null reference.");
+                    }
+                    pc += 3;
+                    break;
+                case BytecodeProgram.INPUT:
+                    r[fp + code[pc + 1]] = runtime.input(spans[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case BytecodeProgram.OUTPUT:
+                    runtime.output(r[fp + code[pc + 1]]);
+                    pc += 2;
+                    break;
+                case BytecodeProgram.CALL:
+                {
+                    int callee = code[pc + 1];
+                    int argc = code[pc + 2];
+                    if (depth == runtime.maxDepth)
+                    {
+                        runtime.callDepthExceeded(spans[code[pc + 4]]);
+                    }
+                    if (depth == returnPc.length)
+                    {
+                        growCallStack();
+                    }
+                    returnPc[depth] = pc + 5 + argc;
+                    savedFp[depth] = fp;
+                    savedFunction[depth] = function;
+                    savedLiveRefs[depth] = code[pc + 3];
+                    depth++;
+
+                    // Params take the first registers of the new frame
+                    int calleeFp = fp + program.functionRegisters[function];
+                    r = ensureRegisters(calleeFp + program.functionRegisters[callee]);
+                    for (int i = 0; i < argc; i++)
+                    {
+                        r[calleeFp + i] = r[fp + code[pc + 5 + i]];
+                    }
+                    fp = calleeFp;
+                    function = callee;
+                    pc = program.functionStart[callee];
+                    break;
+                }
+                case BytecodeProgram.RET:
+                    depth--;
+                    pc = returnPc[depth];
+                    fp = savedFp[depth];
+                    function = savedFunction[depth];
+                    break;
+                case BytecodeProgram.HALT:
+                    return;
+                default:
+                    throw new IllegalStateException("Invalid opcode " + code[pc] + " at " + pc);
+            }
+        }
+    }
+
+    private int[] ensureRegisters(int size)
+    {
+        if (size > registers.length)
+        {
+            registers = Arrays.copyOf(registers, Math.max(size, registers.length * 2));
+        }
+        return registers;
+    }
+
+    private void growCallStack()
+    {
+        int size = returnPc.length * 2;
+        returnPc = Arrays.copyOf(returnPc, size);
+        savedFp = Arrays.copyOf(savedFp, size);
+        savedFunction = Arrays.copyOf(savedFunction, size);
+        savedLiveRefs = Arrays.copyOf(savedLiveRefs, size);
+    }
+
+    public void markRoots(Heap heap)
+    {
+        for (int i = 0; i < liveRefs; i++)
+        {
+            heap.mark(registers[fp + i]);
+        }
+        for (int d = 0; d < depth; d++)
+        {
+            for (int i = 0; i < savedLiveRefs[d]; i++)
+            {
+                heap.mark(registers[savedFp[d] + i]);
+            }
+        }
+    }
+}
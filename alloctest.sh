@@ -0,0 +1,33 @@
+#!/bin/bash
+
+# Allocation regression test: runs each Perf program and fails if the executor allocates more than
+# the limit below. Perf/loop.code runs 1M loop iterations, so a single boxed value per iteration
+# would show up as megabytes.
+limit=65536
+
+echo "Attempting to compile..."
+javac *.java
+
+status=0
+for code in Perf/*.code
+do
+	name=${code%.code}
+	echo ""
+	echo "Running ${code}"
+	java Main --alloc-stats ${code} ${name}.data > ${name}.student 2> ${name}.alloc
+	if cmp -s "${name}.student" "${name}.expected"; then
+		echo "Print looks good"
+	else
+		echo "Output and expected output are different"
+		status=1
+	fi
+	allocated=$(grep -o '[[:digit:]]\+' ${name}.alloc)
+	echo "Allocated ${allocated} bytes (limit ${limit})"
+	if [ -z "${allocated}" ] || [ ${allocated} -gt ${limit} ]; then
+		echo "Allocation limit exceeded"
+		status=1
+	fi
+	rm ${name}.student ${name}.alloc
+done
+
+exit ${status}
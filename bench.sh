@@ -0,0 +1,50 @@
+#!/bin/bash
+
+# Benchmark suite: times every phase of the interpreter on the programs in Bench/. Arguments are passed
+# on to Benchmark, for example
+#   ./bench.sh --save=baseline.txt       record best times
+#   ./bench.sh --compare=baseline.txt    exit with status 1 if any phase got more than 25% slower
+# Each program's output is checked against its .expected file first. Then every phase runs in a JVM of
+# its own, so the JIT's profile of one engine doesn't slow down the next. --phases picks the phases
+# as for Benchmark, the default list is Benchmark's.
+
+echo "Attempting to compile..."
+javac *.java
+
+status=0
+programs=()
+for code in Bench/*.code
+do
+	name=${code%.code}
+	java -Xss16m Main ${code} ${name}.data > ${name}.student
+	if ! cmp -s "${name}.student" "${name}.expected"; then
+		echo "${code}: output and expected output are different"
+		status=1
+	fi
+	rm ${name}.student
+	programs+=(${code} ${name}.data)
+done
+
+phases=(scan scan-mapped parse check resolve fused lazy cache optimize tree stack closure vm)
+options=()
+save=
+for option in "$@"
+do
+	case ${option} in
+		--phases=*) IFS=, read -ra phases <<< "${option#--phases=}" ;;
+		--save=*) save=${option#--save=} ;;
+		*) options+=(${option}) ;;
+	esac
+done
+
+dir=$(mktemp -d)
+for phase in "${phases[@]}"
+do
+	java -Xss16m Benchmark --phases=${phase} --save=${dir}/${phase} "${options[@]}" "${programs[@]}" || status=1
+done
+if [ -n "${save}" ]; then
+	cat ${dir}/* > ${save}
+fi
+rm -r ${dir}
+
+exit ${status}
@@ -0,0 +1,54 @@
+#!/bin/bash
+
+# Saved bytecode test: compiles every Bench program to a .cbc file with --emit-bytecode, runs the file and
+# compares the output with the .expected file. Then checks that a cut short file is refused, and that
+# overwriting any one int of a saved program with 0x7fffffff never gets past the verifier into a Java
+# exception: the program either runs or is refused with a "Can't run" error.
+
+echo "Attempting to compile..."
+javac *.java
+
+status=0
+dir=$(mktemp -d)
+for code in Bench/*.code
+do
+	name=${code%.code}
+	java -Xss16m Main --engine=vm --emit-bytecode=${dir}/program.cbc ${code} ${name}.data > /dev/null 2>&1
+	java Main ${dir}/program.cbc ${name}.data > ${dir}/student 2>&1
+	if cmp -s ${dir}/student ${name}.expected; then
+		echo "${code} saved: ok"
+	else
+		echo "${code} saved: output and expected output are different"
+		status=1
+	fi
+done
+
+java Main --engine=vm --emit-bytecode=${dir}/program.cbc Correct/9.code Correct/9.data > /dev/null 2>&1
+head -c 100 ${dir}/program.cbc > ${dir}/cut.cbc
+java Main ${dir}/cut.cbc Correct/9.data > ${dir}/student 2>&1
+if [ $? = 1 ] && grep -q "^Can't run ${dir}/cut.cbc: the file is cut short.$" ${dir}/student; then
+	echo "cut short file: ok"
+else
+	echo "cut short file: not refused"
+	status=1
+fi
+
+size=$(stat -c %s ${dir}/program.cbc)
+damaged=0
+for ((offset = 0; offset < size - 3; offset += 4))
+do
+	cp ${dir}/program.cbc ${dir}/damaged.cbc
+	printf '\x7f\xff\xff\xff' | dd of=${dir}/damaged.cbc bs=1 seek=${offset} conv=notrunc 2> /dev/null
+	timeout 10 java Main ${dir}/damaged.cbc Correct/9.data > ${dir}/student 2>&1
+	if [ $? -gt 1 ] || grep -q "Exception" ${dir}/student; then
+		echo "damaged file, int at ${offset}: $(head -1 ${dir}/student)"
+		damaged=1
+		status=1
+	fi
+done
+if [ ${damaged} = 0 ]; then
+	echo "damaged files: ok"
+fi
+
+rm -r ${dir}
+exit ${status}
@@ -0,0 +1,85 @@
+#!/bin/bash
+
+# Program cache test: runs every program in Bench/ twice with --cache, the first run fills the cache and
+# the second reads the tree back, and compares the output with the .expected file and the disassembly
+# with a run without the cache. Then checks that a cut short or damaged cache file is replaced, that a program with
+# errors isn't cached and that --cache-size keeps the directory under its size, without
+# storing the programs whose tree alone is bigger.
+
+echo "Attempting to compile..."
+javac *.java
+
+status=0
+check() {
+	if cmp -s "$1" "$2"; then
+		echo "$3: ok"
+	else
+		echo "$3: output and expected output are different"
+		status=1
+	fi
+}
+
+cache=$(mktemp -d)
+for code in Bench/*.code
+do
+	name=${code%.code}
+	timeout 60 java -Xss16m Main --cache=${cache} ${code} ${name}.data > ${name}.student 2>&1
+	check ${name}.student ${name}.expected "${code} stored"
+	timeout 60 java -Xss16m Main --cache=${cache} ${code} ${name}.data > ${name}.student 2>&1
+	check ${name}.student ${name}.expected "${code} cached"
+	java Main --disasm ${code} ${name}.data > ${name}.expected.disasm 2>&1
+	java Main --cache=${cache} --disasm ${code} ${name}.data > ${name}.student 2>&1
+	check ${name}.student ${name}.expected.disasm "${code} cached --disasm"
+	rm ${name}.student ${name}.expected.disasm
+done
+
+rm -r ${cache}
+cache=$(mktemp -d)
+java Main --cache=${cache} Bench/calls.code Bench/calls.data > /dev/null 2>&1
+tree=$(ls ${cache}/*.tree)
+size=$(stat -c %s ${tree})
+head -c 100 ${tree} > ${tree}.cut && mv ${tree}.cut ${tree}
+java Main --cache=${cache} Bench/calls.code Bench/calls.data > Bench/calls.student 2>&1
+check Bench/calls.student Bench/calls.expected "cut short cache file"
+if [ $(stat -c %s ${tree}) != ${size} ]; then
+	echo "cut short cache file: not replaced"
+	status=1
+fi
+
+# A byte changed near the end, in the main body, still reads as a program that prints something else,
+# the digest catches it
+cp ${tree} ${tree}.good
+offset=$((size - 6))
+byte=$(od -An -tu1 -j ${offset} -N1 ${tree} | tr -d ' ')
+printf "$(printf '\\%03o' $((byte ^ 1)))" | dd of=${tree} bs=1 seek=${offset} conv=notrunc 2> /dev/null
+java Main --cache=${cache} Bench/calls.code Bench/calls.data > Bench/calls.student 2>&1
+check Bench/calls.student Bench/calls.expected "damaged cache file"
+if ! cmp -s ${tree} ${tree}.good; then
+	echo "damaged cache file: not replaced"
+	status=1
+fi
+rm Bench/calls.student ${tree}.good
+
+count=$(ls ${cache} | wc -l)
+java Main --cache=${cache} Error/01.code Error/01.data > /dev/null 2>&1
+if [ $(ls ${cache} | wc -l) = ${count} ]; then
+	echo "Error/01.code not cached: ok"
+else
+	echo "Error/01.code: cached"
+	status=1
+fi
+
+for code in Bench/*.code
+do
+	java -Xss16m Main --cache=${cache} --cache-size=100000 ${code} ${code%.code}.data > /dev/null 2>&1
+done
+total=$(cat ${cache}/*.tree | wc -c)
+if [ ${total} -gt 0 ] && [ ${total} -le 100000 ]; then
+	echo "--cache-size=100000: ok, ${total} bytes"
+else
+	echo "--cache-size=100000: ${total} bytes"
+	status=1
+fi
+
+rm -r ${cache}
+exit ${status}
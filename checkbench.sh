@@ -0,0 +1,24 @@
+#!/bin/bash
+
+# Checker scaling benchmark: generates a program with thousands of functions and times the
+# SemanticChecker on it with 1, 2, 4, ... threads up to the number of cores, or up to the first
+# argument. The program is generated with a fixed seed into a temporary directory.
+
+echo "Attempting to compile..."
+javac *.java
+
+max=${1:-$(nproc)}
+dir=$(mktemp -d)
+java Generator --seed=6 --size=10 --depth=2 --loop=2 --functions=2000 --call-depth=2 ${dir}/funcs
+echo "${dir}/funcs.code: $(wc -l < ${dir}/funcs.code) lines"
+
+phases=check
+for ((threads = 2; threads <= max; threads *= 2))
+do
+	phases=${phases},check:${threads}
+done
+java Benchmark --phases=${phases} ${dir}/funcs.code ${dir}/funcs.data
+status=$?
+
+rm -r ${dir}
+exit ${status}
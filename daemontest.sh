@@ -0,0 +1,52 @@
+#!/bin/bash
+
+# Daemon test: starts a daemon and sends it every Bench, Error and Depth program as a job, the output
+# and exit status have to be the ones of a run of Main on its own. Then sends the Bench programs all at
+# once, so the jobs run at the same time in the one JVM.
+
+echo "Attempting to compile..."
+javac *.java
+
+status=0
+dir=$(mktemp -d)
+socket=${dir}/core.sock
+java -Xss16m Main --daemon=${socket} > ${dir}/daemon.log 2>&1 &
+daemon=$!
+while ! grep -q Listening ${dir}/daemon.log 2>/dev/null
+do
+	sleep 0.1
+done
+
+for code in Bench/*.code Error/*.code Depth/*.code
+do
+	name=${code%.code}
+	java -Xss16m Main ${code} ${name}.data > ${dir}/expected 2>&1
+	expected=$?
+	java Main --client=${socket} ${code} ${name}.data > ${dir}/student 2>&1
+	actual=$?
+	if cmp -s ${dir}/student ${dir}/expected && [ ${actual} = ${expected} ]; then
+		echo "${code}: ok"
+	else
+		echo "${code}: output or exit status (${actual}, expected ${expected}) is different"
+		status=1
+	fi
+done
+
+for code in Bench/*.code
+do
+	java Main --client=${socket} ${code} ${code%.code}.data > ${dir}/$(basename ${code}).student 2>&1 &
+done
+wait $(jobs -p | grep -v ${daemon})
+for code in Bench/*.code
+do
+	if cmp -s ${dir}/$(basename ${code}).student ${code%.code}.expected; then
+		echo "${code} concurrent: ok"
+	else
+		echo "${code} concurrent: output and expected output are different"
+		status=1
+	fi
+done
+
+kill ${daemon}
+rm -r ${dir}
+exit ${status}
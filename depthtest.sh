@@ -0,0 +1,43 @@
+#!/bin/bash
+
+# Call depth test: runs each Depth program on every engine, once with the collector running on every
+# allocation (but on the jvm engine, which never collects), and once more with --max-depth=1000, which the programs recurse past, so every engine has
+# to stop at the same call with the same error. The engines that recurse in Java get a thread stack big
+# enough for the recursion, the stack engine and the vm have to manage on a small one.
+
+echo "Attempting to compile..."
+javac *.java
+
+status=0
+check() {
+	if cmp -s "$1" "$2"; then
+		echo "$3: ok"
+	else
+		echo "$3: output and expected output are different"
+		status=1
+	fi
+}
+
+for code in Depth/*.code
+do
+	name=${code%.code}
+	for engine in tree stack closure vm jvm
+	do
+		stack=-Xss16m
+		if [ ${engine} = stack ] || [ ${engine} = vm ]; then
+			stack=-Xss256k
+		fi
+		# The jvm engine never collects and refuses --gc
+		gc=--gc=1
+		if [ ${engine} = jvm ]; then
+			gc=
+		fi
+		java ${stack} Main --engine=${engine} ${gc} ${code} ${name}.data > ${name}.student 2>&1
+		check ${name}.student ${name}.expected "${code} ${engine}"
+		java ${stack} Main --engine=${engine} --max-depth=1000 ${code} ${name}.data > ${name}.student 2>&1
+		check ${name}.student ${name}.limit.expected "${code} ${engine} --max-depth=1000"
+		rm ${name}.student
+	done
+done
+
+exit ${status}
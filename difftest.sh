@@ -0,0 +1,27 @@
+#!/bin/bash
+
+# Differential test: runs every program in Bench/ on each engine and scanner and compares the output
+# with the .expected file, which comes from the tree engine (see gencorpus.sh). Everything but
+# --optimize=off runs the Optimizer, --lazy parses each function body on its first call.
+
+echo "Attempting to compile..."
+javac *.java
+
+status=0
+for code in Bench/*.code
+do
+	name=${code%.code}
+	for options in "--engine=tree" "--engine=stack" "--engine=closure" "--engine=vm" "--engine=jvm" "--scanner=mapped" "--gc=1" "--optimize=off" "--lazy"
+	do
+		timeout 60 java -Xss16m Main ${options} ${code} ${name}.data > ${name}.student 2>&1
+		if cmp -s "${name}.student" "${name}.expected"; then
+			echo "${code} ${options}: ok"
+		else
+			echo "${code} ${options}: output and expected output are different"
+			status=1
+		fi
+		rm ${name}.student
+	done
+done
+
+exit ${status}
@@ -0,0 +1,30 @@
+#!/bin/bash
+
+# Tree dump round trip test: prints each program with --dump-tree, with and without the Optimizer, runs
+# the printed source as a program of its own and compares the output with the .expected file. The
+# dumped source has to get through the whole front end again, folded constants and decided ifs included,
+# which Dump/ has on their own.
+
+echo "Attempting to compile..."
+javac *.java
+
+status=0
+dir=$(mktemp -d)
+for code in Correct/*.code Bench/*.code Expr/*.code Depth/*.code Dump/*.code
+do
+	name=${code%.code}
+	for optimize in on off
+	do
+		java -Xss16m Main --optimize=${optimize} --dump-tree ${code} ${name}.data > ${dir}/dumped.code
+		java -Xss16m Main ${dir}/dumped.code ${name}.data > ${dir}/student 2>&1
+		if cmp -s ${dir}/student ${name}.expected; then
+			echo "${code} optimize=${optimize}: ok"
+		else
+			echo "${code} optimize=${optimize}: dumped tree and expected output are different"
+			status=1
+		fi
+	done
+done
+
+rm -r ${dir}
+exit ${status}
@@ -0,0 +1,30 @@
+#!/bin/bash
+
+# Long expression test: runs each Expr program, whose expressions have thousands of terms, on every
+# engine with and without the Optimizer on a small thread stack and compares the output with the
+# .expected file. Chains of + - and * are flat arrays, so none of this may recurse per term.
+
+echo "Attempting to compile..."
+javac *.java
+
+status=0
+for code in Expr/*.code
+do
+	name=${code%.code}
+	for engine in tree stack closure vm jvm
+	do
+		for optimize in on off
+		do
+			java -Xss256k Main --engine=${engine} --optimize=${optimize} ${code} ${name}.data > ${name}.student 2>&1
+			if cmp -s "${name}.student" "${name}.expected"; then
+				echo "${code} ${engine} optimize=${optimize}: ok"
+			else
+				echo "${code} ${engine} optimize=${optimize}: output and expected output are different"
+				status=1
+			fi
+			rm ${name}.student
+		done
+	done
+done
+
+exit ${status}
@@ -0,0 +1,31 @@
+#!/bin/bash
+
+# Front end test: runs every program with the separate parser, checker and resolver passes, with the
+# fused front end and with the checker on 4 threads, and compares what they print. Front/ has programs
+# whose errors depend on the order the checker finds them in. For programs that pass the checks, the
+# bytecode disassembly, which shows the slot of every variable, has to be the same too.
+
+echo "Attempting to compile..."
+javac *.java
+
+status=0
+for code in Front/*.code Error/*.code Correct/*.code Gc/*.code Depth/*.code Expr/*.code Bench/*.code
+do
+	name=${code%.code}
+	java -Xss16m Main --front-end=passes ${code} ${name}.data > ${name}.passes 2>&1
+	java Main --front-end=passes --disasm ${code} >> ${name}.passes 2>&1
+	for options in "--front-end=fused" "--check-threads=4"
+	do
+		java -Xss16m Main ${options} ${code} ${name}.data > ${name}.other 2>&1
+		java Main ${options} --disasm ${code} >> ${name}.other 2>&1
+		if cmp -s "${name}.passes" "${name}.other"; then
+			echo "${code} ${options}: ok"
+		else
+			echo "${code} ${options}: output is different"
+			status=1
+		fi
+	done
+	rm ${name}.passes ${name}.other
+done
+
+exit ${status}
@@ -0,0 +1,41 @@
+#!/bin/bash
+
+# Garbage collector test: runs each Gc program with a collection threshold of 1 and --gc-stats on
+# every engine that supports collection, and compares the printed reachable counts and program
+# output with the .expected file. The jvm engine keeps refs in Java locals the collector can't see, so it
+# never collects: it has to refuse --gc instead of ignoring it.
+
+echo "Attempting to compile..."
+javac *.java
+
+status=0
+for code in Gc/*.code
+do
+	name=${code%.code}
+	for engine in tree stack closure vm
+	do
+		echo ""
+		echo "Running ${code} on ${engine}"
+		java Main --engine=${engine} --gc=1 --gc-stats ${code} ${name}.data > ${name}.student
+		if cmp -s "${name}.student" "${name}.expected"; then
+			echo "Print looks good"
+		else
+			echo "Output and expected output are different"
+			status=1
+		fi
+		rm ${name}.student
+	done
+
+	echo ""
+	echo "Running ${code} on jvm"
+	java Main --engine=jvm --gc=1 --gc-stats ${code} ${name}.data > ${name}.student
+	if [ $? = 1 ] && grep -q "can't be used with --engine=jvm" ${name}.student; then
+		echo "--gc refused, looks good"
+	else
+		echo "--gc not refused"
+		status=1
+	fi
+	rm ${name}.student
+done
+
+exit ${status}
@@ -0,0 +1,22 @@
+#!/bin/bash
+
+# Regenerates the generated part of the Bench/ corpus with Generator and records each program's
+# output on the tree engine (the Executor) as its .expected file. The seeds and knobs are fixed, so
+# running this again gives the same files.
+
+echo "Attempting to compile..."
+javac *.java
+
+generate() {
+	name=$1
+	shift
+	java Generator "$@" Bench/${name}
+	java -Xss16m Main Bench/${name}.code Bench/${name}.data > Bench/${name}.expected
+	echo "Bench/${name}.code: $(wc -l < Bench/${name}.code) lines"
+}
+
+generate gen-default --seed=1
+generate gen-deep --seed=2 --size=12 --depth=6 --loop=3
+generate gen-calls --seed=3 --functions=8 --call-depth=100 --loop=4
+generate gen-churn --seed=4 --churn=0.6 --loop=30
+generate gen-large --seed=5 --size=500 --depth=1 --loop=2 --functions=6 --call-depth=1
@@ -89,9 +89,45 @@ fi
 echo ""
 echo ""
 
+echo "Running 06.error:"
+timeout 5 ${runner} Error/06.code Error/06.data
+read -n 1 -p "Error is bad function declaration ('(' where the ')' after the formals should be). Error message related to that? (y/n)" mainmenuinput
+if [ $mainmenuinput = "y" ]; then
+	error=$(($error + 1))
+fi
+echo ""
+echo ""
+
+echo "Running 07.error:"
+timeout 5 ${runner} Error/07.code Error/07.data
+read -n 1 -p "Error is bad function call (missing ';' before the next statement). Error message related to that? (y/n)" mainmenuinput
+if [ $mainmenuinput = "y" ]; then
+	error=$(($error + 1))
+fi
+echo ""
+echo ""
+
+echo "Running 08.error:"
+timeout 5 ${runner} Error/08.code Error/08.data
+read -n 1 -p "Error is bad function call (missing '(' in a call that is not the first statement). Error message related to that? (y/n)" mainmenuinput
+if [ $mainmenuinput = "y" ]; then
+	error=$(($error + 1))
+fi
+echo ""
+echo ""
+
+echo "Running 09.error:"
+timeout 5 ${runner} Error/09.code Error/09.data
+read -n 1 -p "Semantic error, assignment to an undeclared variable in a program with no declarations. Error message related to that? (y/n)" mainmenuinput
+if [ $mainmenuinput = "y" ]; then
+	error=$(($error + 1))
+fi
+echo ""
+echo ""
+
 echo "Correct cases score out of 10:"
 echo $score
-echo "Error cases score out of 6:"
+echo "Error cases score out of 10:"
 echo $error
 
 echo "Done!"
\ No newline at end of file